@@ -0,0 +1,698 @@
+/**************************************************************************
+ * @tags edge detection, image analysis, computer vision
+ *
+ * PURPOSE: Finds the edges of every image in a directory tree.
+ *
+ * OVERVIEW: Work flows through three stages connected by bounded queues:
+ *
+ *    list files -> [paths] -> decode -> [images] -> detect -> [edges] -> encode
+ *
+ * Decoding and encoding wait on the disk, so each has its own pool of
+ * threads; detection is CPU-bound and runs on a pool of about one thread per
+ * core, with one EdgeDetectorEngine whose per-thread workspaces are reused
+ * from image to image. When a stage falls behind, the queue in front of it
+ * fills up and the stages upstream block (backpressure), so at most
+ * queueCapacity decoded images are held per queue however large the tree is.
+ *
+ * A file that cannot be decoded or is too small is recorded as a failure
+ * and skipped. Each stage reports the files it handled, its busy time and
+ * the time it was blocked by a full queue downstream.
+ *
+ * Finished files are recorded in an append-only manifest in the output
+ * directory (see BatchManifest), keyed by input path and detector parameters,
+ * including EdgeDetectorEngine.VERSION. A rerun skips an input whose manifest
+ * entry has the same content hash and whose edge file is still there with
+ * the recorded size and time. The hash is only recomputed when the input's
+ * size or time changed, so resuming a mostly finished batch costs one stat
+ * per file. Edge files are written under a temporary name and renamed, so a
+ * crash never leaves a partial file that looks finished.
+ **************************************************************************/
+
+package edgedetector.detectors;
+
+import edgedetector.ui.ImageViewer;
+import edgedetector.util.EdgeMapFile;
+import edgedetector.util.PackedEdgeMap;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+
+public class BatchEdgeDetector {
+
+   /***********************************************************************
+    * Static fields
+    **********************************************************************/
+
+   /**
+    * Format of the edge files written.
+    */
+   public enum Format {
+      PNG(".edges.png"), EDGE_MAP(".edges.emap");
+
+      private final String suffix;
+
+      Format(String suffix) {
+         this.suffix = suffix;
+      }
+
+      public String getSuffix() {
+         return suffix;
+      }
+   }
+
+   // file extensions of the images that are processed
+   private static final Set<String> EXTENSIONS =
+           new HashSet<>(Arrays.asList("jpg", "jpeg", "png", "bmp", "gif", "tif", "tiff", "wbmp"));
+
+   // name of the manifest in the output directory
+   public static final String MANIFEST = "batch-manifest.tsv";
+
+   // end-of-work marker, one per worker of the receiving stage
+   private static final Job POISON = new Job(null, null);
+
+
+   /***********************************************************************
+    * Fields
+    **********************************************************************/
+
+   private final Path inputDir;
+   private final Path outputDir;
+   private final EdgeDetectorEngine engine;
+   private final Format format;
+   private final int decodeThreads;
+   private final int detectThreads;
+   private final int encodeThreads;
+   private final int queueCapacity;
+   private final boolean checkpoint;
+   private final String parameters;
+   private BatchManifest manifest;
+
+   private final StageStats decodeStats = new StageStats("decode");
+   private final StageStats detectStats = new StageStats("detect");
+   private final StageStats encodeStats = new StageStats("encode");
+   private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+   private final AtomicLong skipped = new AtomicLong();
+   private long filesListed;
+   private long wallNanos;
+
+
+   /***********************************************************************
+    * Constructor
+    **********************************************************************/
+
+   private BatchEdgeDetector(Builder builder) {
+      this.inputDir = builder.inputDir.toAbsolutePath().normalize();
+      this.outputDir = builder.outputDir.toAbsolutePath().normalize();
+      this.engine = builder.engine;
+      this.format = builder.format;
+      this.decodeThreads = builder.decodeThreads;
+      this.detectThreads = builder.detectThreads;
+      this.encodeThreads = builder.encodeThreads;
+      this.queueCapacity = builder.queueCapacity;
+      this.checkpoint = builder.checkpoint;
+      this.parameters = engine.getParameters() + " format=" + format + " v" + EdgeDetectorEngine.VERSION;
+   }
+
+   /**
+    * Builder class for constructing BatchEdgeDetector objects.
+    */
+   public static class Builder {
+
+      // required parameters
+      private Path inputDir;
+      private Path outputDir;
+
+      // optional parameters (default values given)
+      private EdgeDetectorEngine engine = new EdgeDetectorEngine.Builder().build();
+      private Format format = Format.PNG;
+      private int decodeThreads = 4;
+      private int detectThreads = Runtime.getRuntime().availableProcessors();
+      private int encodeThreads = 2;
+      private int queueCapacity = 2 * Runtime.getRuntime().availableProcessors();
+      private boolean checkpoint = true;
+
+      /**
+       * @param inputDir directory searched recursively for images
+       * @param outputDir receives one edge file per image, in the same relative location
+       */
+      public Builder(String inputDir, String outputDir) {
+         this.inputDir = Paths.get(inputDir);
+         this.outputDir = Paths.get(outputDir);
+      }
+
+      /**
+       * Detector applied to every image (Sobel by default).
+       * @param engine
+       * @return
+       */
+      public Builder engine(EdgeDetectorEngine engine) {
+         this.engine = engine;
+         return this;
+      }
+
+      public Builder format(Format format) {
+         this.format = format;
+         return this;
+      }
+
+      /**
+       * Threads of the decode, detect and encode pools.
+       */
+      public Builder threads(int decodeThreads, int detectThreads, int encodeThreads) {
+         if (decodeThreads < 1 || detectThreads < 1 || encodeThreads < 1)
+            throw new IllegalArgumentException("Every stage needs at least one thread");
+         this.decodeThreads = decodeThreads;
+         this.detectThreads = detectThreads;
+         this.encodeThreads = encodeThreads;
+         return this;
+      }
+
+      /**
+       * Capacity of each queue between stages.
+       * @param queueCapacity
+       * @return
+       */
+      public Builder queueCapacity(int queueCapacity) {
+         if (queueCapacity < 1)
+            throw new IllegalArgumentException("Invalid queue capacity");
+         this.queueCapacity = queueCapacity;
+         return this;
+      }
+
+      /**
+       * Record finished files in the manifest and skip the ones already
+       * finished with the same parameters (on by default).
+       * @param checkpoint
+       * @return
+       */
+      public Builder checkpoint(boolean checkpoint) {
+         this.checkpoint = checkpoint;
+         return this;
+      }
+
+      public BatchEdgeDetector build() {
+         return new BatchEdgeDetector(this);
+      }
+   }
+
+   /**
+    * One image on its way through the stages.
+    */
+   private static final class Job {
+      final Path input;
+      final Path output;
+      BufferedImage image;
+      PackedEdgeMap edges;
+
+      // input attributes recorded in the manifest
+      long size;
+      long modified;
+      String hash;
+
+      Job(Path input, Path output) {
+         this.input = input;
+         this.output = output;
+      }
+   }
+
+   /**
+    * Work of a stage on one job.
+    */
+   private interface Step {
+      /**
+       * @return false if the job is finished and goes no further
+       */
+      boolean process(Job job) throws Exception;
+   }
+
+
+   /***********************************************************************
+    * Batch processing
+    ***********************************************************************/
+
+   /**
+    * Processes every image under the input directory. Blocks until all
+    * edge files are written.
+    * @throws IOException if the input directory cannot be listed
+    * @throws InterruptedException if interrupted while waiting; the pools are stopped
+    */
+   public void run() throws IOException, InterruptedException {
+      BlockingQueue<Job> paths = new ArrayBlockingQueue<>(queueCapacity);
+      BlockingQueue<Job> images = new ArrayBlockingQueue<>(queueCapacity);
+      BlockingQueue<Job> edges = new ArrayBlockingQueue<>(queueCapacity);
+
+      ExecutorService decodePool = Executors.newFixedThreadPool(decodeThreads);
+      ExecutorService detectPool = Executors.newFixedThreadPool(detectThreads);
+      ExecutorService encodePool = Executors.newFixedThreadPool(encodeThreads);
+      CountDownLatch done = new CountDownLatch(encodeThreads);
+      long start = System.nanoTime();
+      if (checkpoint)
+         manifest = new BatchManifest(outputDir.resolve(MANIFEST));
+      try {
+         startStage(decodePool, decodeThreads, paths, images, detectThreads, decodeStats, detectStats,
+                    this::decode, null);
+         startStage(detectPool, detectThreads, images, edges, encodeThreads, detectStats, encodeStats,
+                    this::detect, null);
+         startStage(encodePool, encodeThreads, edges, null, 0, encodeStats, null, this::encode, done);
+
+         // list files on this thread; handOff() blocks while decoding is behind
+         try (Stream<Path> files = Files.walk(inputDir)) {
+            Iterator<Path> it = files.filter(this::isInput).iterator();
+            while (it.hasNext()) {
+               Path input = it.next();
+               if (!handOff(paths, new Job(input, outputFor(input)), decodeStats)) {
+                  failures.add(input + ": listing stopped, no decode worker left");
+                  break;
+               }
+               filesListed++;
+            }
+         } finally {
+            for (int i = 0; i < decodeThreads; i++)
+               if (!handOff(paths, POISON, decodeStats))
+                  break;
+         }
+         done.await();
+      } finally {
+         wallNanos = System.nanoTime() - start;
+         decodePool.shutdownNow();
+         detectPool.shutdownNow();
+         encodePool.shutdownNow();
+         if (manifest != null)
+            manifest.close();
+      }
+   }
+
+   /**
+    * Starts workers that take jobs from in, process them and put them in out.
+    * The last worker to finish sends one POISON to each downstream worker.
+    * Whatever a job throws, Errors such as OutOfMemoryError included, is
+    * recorded as a failure of that job and the worker goes on.
+    */
+   private void startStage(ExecutorService pool, int workers, BlockingQueue<Job> in, BlockingQueue<Job> out,
+                           int downstreamWorkers, StageStats stats, StageStats downstream, Step step,
+                           CountDownLatch done) {
+      AtomicInteger running = stats.running;
+      running.set(workers);
+      for (int w = 0; w < workers; w++) {
+         pool.execute(() -> {
+            try {
+               while (true) {
+                  Job job = in.take();
+                  if (job == POISON)
+                     break;
+
+                  long begin = System.nanoTime();
+                  try {
+                     if (!step.process(job))
+                        continue;
+                  } catch (Throwable e) {
+                     job.image = null; // a job that ran out of memory should not hold on to it
+                     job.edges = null;
+                     stats.failed.incrementAndGet();
+                     failures.add(job.input + ": " + stats.name + " failed: " + e);
+                     continue;
+                  } finally {
+                     stats.busyNanos.addAndGet(System.nanoTime() - begin);
+                  }
+                  stats.items.incrementAndGet();
+
+                  if (out != null) {
+                     long blocked = System.nanoTime();
+                     boolean taken = handOff(out, job, downstream);
+                     stats.blockedNanos.addAndGet(System.nanoTime() - blocked);
+                     if (!taken) {
+                        failures.add(job.input + ": " + downstream.name + " stage stopped");
+                        break;
+                     }
+                  }
+               }
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            } finally {
+               if (running.decrementAndGet() == 0) {
+                  stats.endNanos = System.nanoTime();
+                  try {
+                     for (int i = 0; i < downstreamWorkers; i++)
+                        if (!handOff(out, POISON, downstream))
+                           break;
+                  } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                  }
+               }
+               if (done != null)
+                  done.countDown();
+            }
+         });
+      }
+      stats.startNanos = System.nanoTime();
+   }
+
+   /**
+    * Puts job in queue, waiting for room as long as some worker of the stage
+    * that takes from queue is still running.
+    * @return false if every worker of that stage has stopped
+    */
+   private static boolean handOff(BlockingQueue<Job> queue, Job job, StageStats consumer)
+           throws InterruptedException {
+      while (!queue.offer(job, 100, TimeUnit.MILLISECONDS))
+         if (consumer.running.get() == 0)
+            return false;
+      return true;
+   }
+
+   private boolean decode(Job job) throws IOException {
+      if (!checkpoint) {
+         job.image = read(Files.readAllBytes(job.input));
+         return true;
+      }
+
+      BasicFileAttributes attributes = Files.readAttributes(job.input, BasicFileAttributes.class);
+      job.size = attributes.size();
+      job.modified = attributes.lastModifiedTime().toMillis();
+      BatchManifest.Entry entry = manifest.get(relativeInput(job), parameters);
+
+      // unchanged since it was finished: no need to read it
+      if (entry != null && entry.inputSize == job.size && entry.inputModified == job.modified
+          && isComplete(entry)) {
+         skipped.incrementAndGet();
+         return false;
+      }
+
+      byte[] bytes = Files.readAllBytes(job.input);
+      job.hash = sha256(bytes);
+      if (entry != null && entry.hash.equals(job.hash) && isComplete(entry)) {
+         // touched but same content: record the new attributes for next time
+         manifest.append(new BatchManifest.Entry(entry.input, job.size, job.modified, job.hash, parameters,
+                                                 entry.output, entry.outputSize, entry.outputModified));
+         skipped.incrementAndGet();
+         return false;
+      }
+      job.image = read(bytes);
+      return true;
+   }
+
+   private static BufferedImage read(byte[] bytes) throws IOException {
+      BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+      if (image == null)
+         throw new IOException("No image reader");
+      return image;
+   }
+
+   /**
+    * @return true if the edge file of entry is still there as it was written
+    */
+   private boolean isComplete(BatchManifest.Entry entry) throws IOException {
+      Path output = outputDir.resolve(entry.output);
+      if (!Files.isRegularFile(output))
+         return false;
+      BasicFileAttributes attributes = Files.readAttributes(output, BasicFileAttributes.class);
+      return attributes.size() == entry.outputSize
+             && attributes.lastModifiedTime().toMillis() == entry.outputModified;
+   }
+
+   private boolean detect(Job job) {
+      BufferedImage image = job.image;
+      int rows = engine.outputRows(image.getHeight());
+      int columns = engine.outputColumns(image.getWidth());
+      if (rows <= 0 || columns <= 0)
+         throw new IllegalArgumentException("Image smaller than the convolution kernels");
+
+      boolean[] edges = new boolean[rows * columns];
+      engine.detect(image, edges);
+      job.edges = new PackedEdgeMap(edges, rows, columns);
+      job.image = null; // let the decoded image go before encoding
+      return true;
+   }
+
+   private boolean encode(Job job) throws IOException {
+      Files.createDirectories(job.output.getParent());
+      Path part = job.output.resolveSibling(job.output.getFileName() + ".part");
+      if (format == Format.EDGE_MAP)
+         EdgeMapFile.write(part.toString(), job.edges);
+      else if (!ImageIO.write(ImageViewer.createImageFromPixels(job.edges), "png", part.toFile()))
+         throw new IOException("No PNG writer");
+      Files.move(part, job.output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      job.edges = null;
+
+      if (checkpoint) {
+         BasicFileAttributes attributes = Files.readAttributes(job.output, BasicFileAttributes.class);
+         manifest.append(new BatchManifest.Entry(relativeInput(job), job.size, job.modified, job.hash, parameters,
+                                                 outputDir.relativize(job.output).toString(), attributes.size(),
+                                                 attributes.lastModifiedTime().toMillis()));
+      }
+      return true;
+   }
+
+
+   /***********************************************************************
+    * Helper methods
+    ***********************************************************************/
+
+   /**
+    * @return true for images under the input directory that are not output of
+    *         this batch: files under the output directory, temporary .part
+    *         files and the manifest are skipped
+    */
+   private boolean isInput(Path path) {
+      String name = path.getFileName().toString();
+      if (name.endsWith(".part") || name.equals(MANIFEST))
+         return false;
+      if (inputDir.startsWith(outputDir)) {
+         // edge files are written among the inputs: recognize them by name
+         for (Format f : Format.values())
+            if (name.endsWith(f.getSuffix()))
+               return false;
+      } else if (path.startsWith(outputDir)) {
+         return false;
+      }
+      return isImage(path);
+   }
+
+   private static boolean isImage(Path path) {
+      if (!Files.isRegularFile(path))
+         return false;
+      String name = path.getFileName().toString();
+      int dot = name.lastIndexOf('.');
+      return dot >= 0 && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+   }
+
+   private String relativeInput(Job job) {
+      return inputDir.relativize(job.input).toString();
+   }
+
+   private static String sha256(byte[] bytes) {
+      try {
+         byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+         StringBuilder hex = new StringBuilder(2 * digest.length);
+         for (byte b : digest)
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+         return hex.toString();
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException("SHA-256 unavailable", e); // every JVM must provide it
+      }
+   }
+
+   /**
+    * @return edge file of input: same relative path under outputDir, with the format's suffix appended
+    */
+   Path outputFor(Path input) {
+      Path relative = inputDir.relativize(input);
+      return outputDir.resolve(relative).resolveSibling(relative.getFileName() + format.getSuffix());
+   }
+
+
+   /***********************************************************************
+    * Statistics
+    ***********************************************************************/
+
+   /**
+    * Counters of one stage.
+    */
+   public static final class StageStats {
+      private final String name;
+      private final AtomicLong items = new AtomicLong();
+      private final AtomicLong failed = new AtomicLong();
+      private final AtomicLong busyNanos = new AtomicLong();
+      private final AtomicLong blockedNanos = new AtomicLong();
+      private final AtomicInteger running = new AtomicInteger(); // workers not yet stopped
+      private volatile long startNanos;
+      private volatile long endNanos;
+
+      private StageStats(String name) {
+         this.name = name;
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      /**
+       * @return # of files this stage finished
+       */
+      public long getItems() {
+         return items.get();
+      }
+
+      /**
+       * @return # of files this stage failed on
+       */
+      public long getFailed() {
+         return failed.get();
+      }
+
+      /**
+       * @return time spent working, summed over the stage's threads
+       */
+      public long getBusyNanos() {
+         return busyNanos.get();
+      }
+
+      /**
+       * @return time spent waiting for room in the next queue (backpressure), summed over threads
+       */
+      public long getBlockedNanos() {
+         return blockedNanos.get();
+      }
+
+      /**
+       * @return files finished per second, from the start of the run to the stage's last file
+       */
+      public double getThroughput() {
+         long end = (endNanos != 0) ? endNanos : System.nanoTime();
+         return items.get() / Math.max(1e-9, (end - startNanos) / 1e9);
+      }
+
+      @Override
+      public String toString() {
+         return String.format("%-7s %8d files %6d failed %9.1f files/s   busy %8.1f s   blocked %8.1f s",
+                              name, getItems(), getFailed(), getThroughput(), getBusyNanos() / 1e9,
+                              getBlockedNanos() / 1e9);
+      }
+   }
+
+
+   /***********************************************************************
+    * Accessors
+    ***********************************************************************/
+
+   public StageStats getDecodeStats() {
+      return decodeStats;
+   }
+
+   public StageStats getDetectStats() {
+      return detectStats;
+   }
+
+   public StageStats getEncodeStats() {
+      return encodeStats;
+   }
+
+   /**
+    * @return "path: stage failed: reason" for every file that was skipped
+    */
+   public List<String> getFailures() {
+      synchronized (failures) {
+         return new ArrayList<>(failures);
+      }
+   }
+
+   /**
+    * @return # of files skipped because the manifest shows them finished
+    */
+   public long getSkipped() {
+      return skipped.get();
+   }
+
+   /**
+    * @return detector parameters recorded in the manifest
+    */
+   public String getParameters() {
+      return parameters;
+   }
+
+   /**
+    * @return # of image files found under the input directory
+    */
+   public long getFilesListed() {
+      return filesListed;
+   }
+
+   public long getWallNanos() {
+      return wallNanos;
+   }
+
+   /**
+    * @return one line per stage plus totals
+    */
+   public String getReport() {
+      return decodeStats + "\n" + detectStats + "\n" + encodeStats + "\n"
+             + String.format("%d files listed, %d skipped as finished, %d written in %.1f s", filesListed,
+                             skipped.get(), encodeStats.getItems(), wallNanos / 1e9);
+   }
+
+
+   /*********************************************************************
+    * Command line
+    *********************************************************************/
+
+   /**
+    * Usage: BatchEdgeDetector inputDir outputDir [sobel|prewitt|roberts|canny] [png|emap]
+    * Rerunning with the same arguments resumes an interrupted batch.
+    * @param args
+    * @throws Exception
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 2) {
+         System.err.println("Usage: BatchEdgeDetector inputDir outputDir [sobel|prewitt|roberts|canny] [png|emap]");
+         return;
+      }
+
+      EdgeDetectorEngine.Builder engine = new EdgeDetectorEngine.Builder();
+      String detector = args.length > 2 ? args[2].toLowerCase(Locale.ROOT) : "sobel";
+      switch (detector) {
+         case "sobel":   engine.operator(EdgeOperator.SOBEL); break;
+         case "prewitt": engine.operator(EdgeOperator.PREWITT); break;
+         case "roberts": engine.operator(EdgeOperator.ROBERTS_CROSS); break;
+         case "canny":   engine.canny(); break;
+         default: throw new IllegalArgumentException("Unknown detector " + args[2]);
+      }
+      Format format = (args.length > 3 && args[3].equalsIgnoreCase("emap")) ? Format.EDGE_MAP : Format.PNG;
+
+      BatchEdgeDetector batch = new BatchEdgeDetector.Builder(args[0], args[1])
+              .engine(engine.build())
+              .format(format)
+              .build();
+      batch.run();
+
+      System.out.println(batch.getReport());
+      for (String failure : batch.getFailures())
+         System.err.println(failure);
+   }
+}
@@ -0,0 +1,190 @@
+package edgedetector.detectors;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only record of the edge files a batch has finished, so an
+ * interrupted batch can resume where it stopped.
+ *
+ * <P> Every line is one finished file, written only after the edge file is in
+ * place: version tag, input path, input size and modification time, SHA-256
+ * of the input's bytes, detector parameters, output path, and output size and
+ * modification time, separated by tabs. Paths are relative to the input and
+ * output directories. A later line for the same input and parameters
+ * replaces an earlier one. A line cut short by a crash is ignored on loading.
+ */
+final class BatchManifest implements Closeable {
+
+   private static final String TAG = "v1";
+   private static final int FIELDS = 9;
+
+   /**
+    * One finished file.
+    */
+   static final class Entry {
+      final String input;
+      final long inputSize;
+      final long inputModified;
+      final String hash;
+      final String parameters;
+      final String output;
+      final long outputSize;
+      final long outputModified;
+
+      Entry(String input, long inputSize, long inputModified, String hash, String parameters,
+            String output, long outputSize, long outputModified) {
+         this.input = input;
+         this.inputSize = inputSize;
+         this.inputModified = inputModified;
+         this.hash = hash;
+         this.parameters = parameters;
+         this.output = output;
+         this.outputSize = outputSize;
+         this.outputModified = outputModified;
+      }
+   }
+
+   private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+   private final Writer out;
+   private int corruptLines;
+
+   /**
+    * Loads the entries of file, creating it if needed, and opens it for appending.
+    */
+   BatchManifest(Path file) throws IOException {
+      if (file.getParent() != null)
+         Files.createDirectories(file.getParent());
+      if (Files.exists(file)) {
+         List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+         for (String line : lines) {
+            Entry entry = parse(line);
+            if (entry != null)
+               entries.put(key(entry.input, entry.parameters), entry);
+            else if (!line.isEmpty())
+               corruptLines++;
+         }
+         terminateLastLine(file);
+      }
+      out = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                                                       StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+   }
+
+   /**
+    * Ends a line cut short by a crash, so the next entry starts on its own line.
+    */
+   private static void terminateLastLine(Path file) throws IOException {
+      try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+         long length = raf.length();
+         if (length == 0)
+            return;
+         raf.seek(length - 1);
+         if (raf.read() != '\n')
+            raf.write('\n');
+      }
+   }
+
+   /**
+    * @return the latest entry for input detected with parameters, or null
+    */
+   Entry get(String input, String parameters) {
+      return entries.get(key(input, parameters));
+   }
+
+   /**
+    * Appends entry and writes it through to the file.
+    */
+   synchronized void append(Entry entry) throws IOException {
+      out.write(String.join("\t", TAG, escape(entry.input), Long.toString(entry.inputSize),
+                            Long.toString(entry.inputModified), entry.hash, escape(entry.parameters),
+                            escape(entry.output), Long.toString(entry.outputSize),
+                            Long.toString(entry.outputModified)));
+      out.write('\n');
+      out.flush();
+      entries.put(key(entry.input, entry.parameters), entry);
+   }
+
+   /**
+    * @return # of distinct input/parameter pairs recorded
+    */
+   int size() {
+      return entries.size();
+   }
+
+   /**
+    * @return # of unreadable lines skipped while loading
+    */
+   int getCorruptLines() {
+      return corruptLines;
+   }
+
+   @Override
+   public synchronized void close() throws IOException {
+      out.close();
+   }
+
+   private static String key(String input, String parameters) {
+      return input + '\t' + parameters;
+   }
+
+   private static Entry parse(String line) {
+      String[] f = line.split("\t", -1);
+      if (f.length != FIELDS || !f[0].equals(TAG))
+         return null;
+      try {
+         return new Entry(unescape(f[1]), Long.parseLong(f[2]), Long.parseLong(f[3]), f[4], unescape(f[5]),
+                          unescape(f[6]), Long.parseLong(f[7]), Long.parseLong(f[8]));
+      } catch (IllegalArgumentException e) {
+         return null;
+      }
+   }
+
+   /**
+    * Escapes backslashes, tabs and line breaks, which would break the line format.
+    */
+   private static String escape(String s) {
+      StringBuilder sb = new StringBuilder(s.length());
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '\\': sb.append("\\\\"); break;
+            case '\t': sb.append("\\t"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            default: sb.append(c);
+         }
+      }
+      return sb.toString();
+   }
+
+   private static String unescape(String s) {
+      StringBuilder sb = new StringBuilder(s.length());
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         if (c != '\\') {
+            sb.append(c);
+            continue;
+         }
+         if (++i == s.length())
+            throw new IllegalArgumentException("Dangling escape");
+         switch (s.charAt(i)) {
+            case '\\': sb.append('\\'); break;
+            case 't': sb.append('\t'); break;
+            case 'n': sb.append('\n'); break;
+            case 'r': sb.append('\r'); break;
+            default: throw new IllegalArgumentException("Invalid escape");
+         }
+      }
+      return sb.toString();
+   }
+}
@@ -18,12 +18,18 @@
  *       3. Non-maximum suppression (removes false edges)
  *       4. Hysteresis (calculate two thresholds --> weak and strong edges)
  *       5. Edge tracing (keep strong edges and all weak edges connected to strong edges)
+ *
+ * Only steps 4 and 5 depend on the thresholds and minEdgeSize. The magnitudes
+ * left after step 3 are kept, so rethreshold() can try new values without
+ * repeating steps 1-3. With a HysteresisPersistence map (Builder option
+ * persistenceMap, or getPersistenceMap()) it does not trace edges either.
  **************************************************************************/
 
 package edgedetector.detectors;
 
 
 import edgedetector.grayscale.Grayscale;
+import edgedetector.grayscale.TiledImageSource;
 import edgedetector.imagederivatives.ConvolutionKernel;
 import edgedetector.imagederivatives.ImageConvolution;
 import edgedetector.ui.ImageViewer;
@@ -36,8 +42,6 @@ import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Stack;
 
 
 public class CannyEdgeDetector {
@@ -93,6 +97,12 @@ public class CannyEdgeDetector {
    // "weak" edges found by double thresholding in hysteresis step
    private boolean[][] weakEdges;
 
+   // gradient magnitudes after non-maximum suppression; input of hysteresis
+   private int[][] suppressedMag;
+
+   // merge tree of suppressedMag for hysteresis with any thresholds; null until needed
+   private HysteresisPersistence persistence;
+
    // number of edge pixels
    private int numEdgePixels;
 
@@ -106,6 +116,10 @@ public class CannyEdgeDetector {
    private int rows;
    private int columns;
 
+   // subsampling step of a preview: edges[i][j] is at pixel ((j + offset) * scale, (i + offset) * scale)
+   // of the full image, see getOffset()
+   private int scale;
+
 
    /***********************************************************************
     * Constructor
@@ -126,13 +140,20 @@ public class CannyEdgeDetector {
       // set user information from builder
       this.L1norm = builder.L1norm;
       this.minEdgeSize = builder.minEdgeSize;
+      this.scale = builder.scale;
       if (!(this.calcThreshold = builder.calcThreshold)) {
          this.lowThreshold = builder.lowThreshold;
          this.highThreshold = builder.highThreshold;
       }
 
       // run KMeans++ clustering algorithm
-      findEdges(builder.image);
+      if (builder.fused)
+         findEdgesFused(builder.image);
+      else
+         findEdges(builder.image);
+
+      if (builder.persistenceMap)
+         persistence = new HysteresisPersistence(suppressedMag);
    }
 
    /**
@@ -153,6 +174,9 @@ public class CannyEdgeDetector {
       private int highThreshold;
       private boolean L1norm = false;
       private int minEdgeSize = 0;
+      private int scale = 1;
+      private boolean persistenceMap = false;
+      private boolean fused = false;
 
 
       //=========================== CONSTRUCTOR =========================//
@@ -165,6 +189,38 @@ public class CannyEdgeDetector {
          this.image = image;
       }
 
+      /**
+       * Read the image from a file.
+       * @param filePath path to image
+       * @throws IOException if the image cannot be decoded
+       */
+      public Builder(String filePath) throws IOException {
+         this(filePath, Integer.MAX_VALUE);
+      }
+
+      /**
+       * Preview mode: decode the image subsampled so that neither side is longer
+       * than previewSize. toImageCoordinates() maps edge coordinates back
+       * to the full image.
+       * <P> Smoothing, gradient and suppression run fused in EdgeDetectorEngine,
+       * with the same results. Most of the time goes to decoding: ImageIO's
+       * JPEG reader decodes every pixel even when subsampling, so a JPEG
+       * preview takes at least that long whatever previewSize is (about
+       * 180-330 ms for 36 MP). With previewSize 1024 a 36 MP JPEG previews in
+       * about 270-300 ms, of which detection with calculated thresholds is
+       * about 95 ms.
+       * @param filePath path to image
+       * @param previewSize longest side of the decoded image, in pixels
+       * @throws IOException if the image cannot be decoded
+       */
+      public Builder(String filePath, int previewSize) throws IOException {
+         try (TiledImageSource source = new TiledImageSource(filePath)) {
+            this.scale = source.subsamplingFor(previewSize);
+            this.image = source.readGraySubsampled(scale);
+         }
+         this.fused = true;
+      }
+
       /**
        * Set high and low thresholds.
        * @param lowThreshold
@@ -200,6 +256,17 @@ public class CannyEdgeDetector {
          return this;
       }
 
+      /**
+       * Also build the hysteresis persistence map, so that rethreshold()
+       * answers any thresholds without tracing edges.
+       * @param persistenceMap
+       * @return
+       */
+      public Builder persistenceMap(boolean persistenceMap) {
+         this.persistenceMap = persistenceMap;
+         return this;
+      }
+
       /**
        * Builds a CannyEdgeDetector object.
        * @return
@@ -253,15 +320,45 @@ public class CannyEdgeDetector {
 
       //================ STEP 3: NON-MAXIMUM SUPPRESSION ================//
 
-      edges = new boolean[rows][columns];
-      weakEdges = new boolean[rows][columns];
-      strongEdges = new boolean[rows][columns];
-
       // apply non-maximum suppression (suppress false edges)
       for (int i = 0; i < rows; i++)
          for (int j = 0; j < columns; j++)
             if (NonMaximumSuppression.nonMaximumSuppression(mag, angle[i][j], i, j))
                mag[i][j] = 0;
+      suppressedMag = mag;
+
+      hysteresis();
+   }
+
+   /**
+    * Canny's Edge Detection algorithm with steps 1 to 3 fused row by row in
+    * EdgeDetectorEngine, which finds the same suppressed magnitudes as
+    * findEdges() without its full-size intermediate images.
+    * @param image
+    */
+   private void findEdgesFused(int[][] image) {
+
+      //=========== STEPS 1-3: SMOOTHING, GRADIENT, SUPPRESSION ==========//
+
+      EdgeDetectorEngine engine = new EdgeDetectorEngine.Builder().canny().L1norm(L1norm).build();
+      rows = engine.outputRows(image.length);
+      columns = engine.outputColumns(image[0].length);
+      int[][] mag = new int[rows][];
+      EdgeDetectorEngine.RowStream stream = engine.stream(image[0].length, (i, suppressed) -> mag[i] = suppressed.clone());
+      for (int[] row : image)
+         stream.push(row);
+      stream.end();
+      suppressedMag = mag;
+
+      hysteresis();
+   }
+
+   /**
+    * Steps 4 and 5 on suppressedMag: hysteresis thresholds (calculated if
+    * the user did not provide them) and edge tracing.
+    */
+   private void hysteresis() {
+      int[][] mag = suppressedMag;
 
 
       //======================= STEP 4: HYSTERESIS ======================//
@@ -270,104 +367,119 @@ public class CannyEdgeDetector {
       if (calcThreshold) {
          // TODO: implement other automated hysteresis algorithms
 
-         // run KMeans++ clustering with 3 clusters (because 2 thresholds)
-         // in 1 dimension using magnitudes of gradient
-         int k = 3;
-         double[][] points = new double[rows * columns][1];
-         int counter = 0;
+         int maxMag = 0;
+         for (int i = 0; i < rows; i++)
+            for (int j = 0; j < columns; j++)
+               maxMag = Math.max(maxMag, mag[i][j]);
+
+         int[] histogram = new int[maxMag + 1];
          for (int i = 0; i < rows; i++)
             for (int j = 0; j < columns; j++)
-               points[counter++][0] = mag[i][j];
-
-         KMeans clustering = new KMeans.Builder(k, points)
-                 .iterations(10)
-                 .pp(true)
-                 .epsilon(.01)
-                 .useEpsilon(true)
-                 .build();
-         double[][] centroids = clustering.getCentroids();
-
-         boolean b = centroids[0][0] < centroids[1][0];
-         lowThreshold = (int) (b ? centroids[0][0] : centroids[1][0]);
-         highThreshold = (int) (b ? centroids[1][0] : centroids[0][0]);
+               histogram[mag[i][j]]++;
+
+         int[] thresholds = calcThresholds(histogram, maxMag);
+         lowThreshold = thresholds[0];
+         highThreshold = thresholds[1];
       }
 
 
       //====================== STEP 5: EDGE TRACING =====================//
 
-      // data structures to help with DFS in edge tracing
-      HashSet<Integer> strongSet = new HashSet<Integer>();
-      HashSet<Integer> weakSet = new HashSet<Integer>();
+      traceEdges();
+   }
+
 
-      // find strong and weak edges
-      int index = 0;
-      numWeakEdgePixels = 0;
+   /**
+    * Double thresholding and edge tracing of suppressedMag with the current
+    * thresholds and minEdgeSize. Fills a new edges array, so arrays returned
+    * by earlier getter calls are left as they were. Strong and weak edges are
+    * only split out when asked for (see splitStrongWeak()).
+    */
+   private void traceEdges() {
+      edges = new boolean[rows][columns];
+      strongEdges = null;
+      weakEdges = null;
+
+      // with the persistence map, one comparison and lookup per pixel
+      if (persistence != null) {
+         numEdgePixels = persistence.edges(lowThreshold, highThreshold, minEdgeSize, edges);
+         return;
+      }
+
+      // track all contiguous edge segments, each consisting of weak edge
+      // pixels and at least 1 strong edge pixel
+      byte[][] classes = new byte[rows][columns];
+      for (int r = 0; r < rows; r++)
+         for (int c = 0; c < columns; c++)
+            if (suppressedMag[r][c] >= highThreshold)
+               classes[r][c] = TiledEdgeDetector.STRONG;
+            else if (suppressedMag[r][c] >= lowThreshold)
+               classes[r][c] = TiledEdgeDetector.WEAK;
+      TiledEdgeDetector.traceEdges(classes, minEdgeSize, edges);
+
+      numEdgePixels = 0;
+      for (int r = 0; r < rows; r++)
+         for (int c = 0; c < columns; c++)
+            if (edges[r][c])
+               numEdgePixels++;
+   }
+
+   /**
+    * Builds strongEdges and weakEdges and their counts for the current
+    * thresholds, the first time one of them is asked for.
+    */
+   private void splitStrongWeak() {
+      if (strongEdges != null)
+         return;
+      boolean[][] strong = new boolean[rows][columns];
+      boolean[][] weak = new boolean[rows][columns];
       numStrongEdgePixels = 0;
+      numWeakEdgePixels = 0;
       for (int r = 0; r < rows; r++) {
          for (int c = 0; c < columns; c++) {
-            if (mag[r][c] >= highThreshold) {
-               strongSet.add(index);
-               strongEdges[r][c] = true;
+            if (suppressedMag[r][c] >= highThreshold) {
+               strong[r][c] = true;
                numStrongEdgePixels++;
-            } else if (mag[r][c] >= lowThreshold) {
-               weakSet.add(index);
-               weakEdges[r][c] = true;
+            } else if (suppressedMag[r][c] >= lowThreshold) {
+               weak[r][c] = true;
                numWeakEdgePixels++;
             }
-            index++;
          }
       }
+      weakEdges = weak;
+      strongEdges = strong;
+   }
 
-      // if false --> not checked. if true --> checked
-      boolean[][] marked = new boolean[rows][columns];
-      Stack<Integer> toAdd = new Stack<Integer>();
-
-      // depth-first search to track all contiguous edge segments, each consisting
-      // of weak edge pixels and at least 1 strong edge pixel
-      for (int strongIndex : strongSet) {
-         dfs(ind2sub(strongIndex, columns)[0], ind2sub(strongIndex, columns)[1], weakSet, strongSet, marked, toAdd);
 
-         if (toAdd.size() >= minEdgeSize)
-            for (int edgeIndex : toAdd)
-               edges[ind2sub(edgeIndex, columns)[0]][ind2sub(edgeIndex, columns)[1]] = true;
+   /***********************************************************************
+    * Incremental re-thresholding
+    ***********************************************************************/
 
-         toAdd.clear();
-      }
+   /**
+    * Redoes hysteresis and edge tracing with new thresholds, reusing the
+    * magnitudes left by non-maximum suppression. Much faster than building a
+    * new detector, so thresholds can be tuned interactively.
+    * @param lowThreshold
+    * @param highThreshold
+    */
+   public void rethreshold(int lowThreshold, int highThreshold) {
+      rethreshold(lowThreshold, highThreshold, minEdgeSize);
    }
 
-
    /**
-    * Depth-first-search for edge tracking.
-    * @param r
-    * @param c
-    * @param weakSet HashSet of indices of all weak edges
-    * @param strongSet HashSet of indices of all strong edges
-    * @param marked boolean[][] to avoid double-checking pixels
-    * @param toAdd possible edges (must still check edge contains >= minEdgeSize # of pixels)
+    * Redoes hysteresis and edge tracing with new thresholds and minimum edge size.
+    * @param lowThreshold
+    * @param highThreshold
+    * @param minEdgeSize
     */
-   private void dfs(int r, int c, HashSet<Integer> weakSet, HashSet<Integer> strongSet, boolean[][] marked, Stack<Integer> toAdd) {
-      // check indices still in bounds and haven't already checked this point
-      if (r < 0 || r >= rows || c < 0 || c >= columns || marked[r][c])
-         return;
-
-      // mark so that we don't come back
-      marked[r][c] = true;
-
-      int index = sub2ind(r, c, columns);
-      if (weakSet.contains(index) || strongSet.contains(index)) {
-         // mark as possible edge (must also have >= minEdgeSize # of pixels)
-         toAdd.push(sub2ind(r, c, columns));
-
-         // continue depth first search
-         dfs(r - 1, c - 1, weakSet, strongSet, marked, toAdd);
-         dfs(r - 1, c, weakSet, strongSet, marked, toAdd);
-         dfs(r - 1, c + 1, weakSet, strongSet, marked, toAdd);
-         dfs(r, c - 1, weakSet, strongSet, marked, toAdd);
-         dfs(r, c + 1, weakSet, strongSet, marked, toAdd);
-         dfs(r + 1, c - 1, weakSet, strongSet, marked, toAdd);
-         dfs(r + 1, c, weakSet, strongSet, marked, toAdd);
-         dfs(r + 1, c + 1, weakSet, strongSet, marked, toAdd);
-      }
+   public void rethreshold(int lowThreshold, int highThreshold, int minEdgeSize) {
+      if (lowThreshold > highThreshold || lowThreshold < 0 || highThreshold > 255)
+         throw new IllegalArgumentException("Invalid threshold values");
+      this.calcThreshold = false;
+      this.lowThreshold = lowThreshold;
+      this.highThreshold = highThreshold;
+      this.minEdgeSize = minEdgeSize;
+      traceEdges();
    }
 
 
@@ -376,24 +488,43 @@ public class CannyEdgeDetector {
     ***********************************************************************/
 
    /**
-    * Linear indexing to 2D indexing.
-    * @param index
-    * @param columns
-    * @return
+    * Automatic hysteresis thresholds: runs KMeans++ clustering with 3 clusters
+    * (because 2 thresholds) in 1 dimension using magnitudes of gradient.
+    * Magnitudes are small integers, so the histogram is clustered (distinct
+    * values weighted by count).
+    * @param histogram histogram[m] = # of pixels with magnitude m
+    * @param maxMag largest magnitude with a non-zero count
+    * @return {low threshold, high threshold}
     */
-   private static int[] ind2sub(int index, int columns) {
-      return new int[] {index / columns, index - columns * (index / columns)};
-   }
+   static int[] calcThresholds(int[] histogram, int maxMag) {
+      int k = 3;
+      int distinct = 0;
+      for (int m = 0; m <= maxMag; m++)
+         if (histogram[m] > 0)
+            distinct++;
+
+      double[][] points = new double[distinct][1];
+      double[] counts = new double[distinct];
+      int counter = 0;
+      for (int m = 0; m <= maxMag; m++)
+         if (histogram[m] > 0) {
+            points[counter][0] = m;
+            counts[counter++] = histogram[m];
+         }
 
-   /**
-    * 2D indexing to linear indexing.
-    * @param r
-    * @param c
-    * @param columns
-    * @return
-    */
-   private static int sub2ind(int r, int c, int columns) {
-      return columns * r + c;
+      KMeans clustering = new KMeans.Builder(k, points)
+              .weights(counts)
+              .iterations(10)
+              .pp(true)
+              .epsilon(.01)
+              .useEpsilon(true)
+              .build();
+      double[][] centroids = clustering.getCentroids();
+
+      boolean b = centroids[0][0] < centroids[1][0];
+      int low = (int) (b ? centroids[0][0] : centroids[1][0]);
+      int high = (int) (b ? centroids[1][0] : centroids[0][0]);
+      return new int[] {low, high};
    }
 
    /**
@@ -457,6 +588,30 @@ public class CannyEdgeDetector {
       return lowThreshold;
    }
 
+   /**
+    * @return minimum number of pixels of a kept edge
+    */
+   public int getMinEdgeSize() {
+      return minEdgeSize;
+   }
+
+   /**
+    * @return gradient magnitudes after non-maximum suppression (not a copy)
+    */
+   public int[][] getSuppressedMagnitudes() {
+      return suppressedMag;
+   }
+
+   /**
+    * @return hysteresis persistence map of the suppressed magnitudes, built on
+    * first use unless the Builder asked for it
+    */
+   public HysteresisPersistence getPersistenceMap() {
+      if (persistence == null)
+         persistence = new HysteresisPersistence(suppressedMag);
+      return persistence;
+   }
+
    /**
     * @return edges detected by Canny Edge Detector
     */
@@ -468,6 +623,7 @@ public class CannyEdgeDetector {
     * @return weak edges detected in hysteresis step
     */
    public boolean[][] getStrongEdges() {
+      splitStrongWeak();
       return strongEdges;
    }
 
@@ -475,6 +631,7 @@ public class CannyEdgeDetector {
     * @return strong edges detected in hysteresis step
     */
    public boolean[][] getWeakEdges() {
+      splitStrongWeak();
       return weakEdges;
    }
 
@@ -489,6 +646,7 @@ public class CannyEdgeDetector {
     * @return # of strong edge pixels detected by Canny Edge Detector
     */
    public int getStrongEdgePixels() {
+      splitStrongWeak();
       return numStrongEdgePixels;
    }
 
@@ -496,9 +654,34 @@ public class CannyEdgeDetector {
     * @return # of weak edge pixels detected by Canny Edge Detector
     */
    public int getWeakEdgePixels() {
+      splitStrongWeak();
       return numWeakEdgePixels;
    }
 
+   /**
+    * @return subsampling step of a preview (1 at full resolution)
+    */
+   public int getScale() {
+      return scale;
+   }
+
+   /**
+    * @return # of pixels the Gaussian and Sobel convolutions trim from the top
+    * and left of the (preview) image: edges[i][j] is at pixel (i + offset, j + offset) of it
+    */
+   public int getOffset() {
+      return (ConvolutionKernel.GAUSSIAN_KERNEL.length - 1) / 2 + (X_KERNEL.length - 1) / 2;
+   }
+
+   /**
+    * @return {x, y} of the full-image pixel under edges[i][j], taking the
+    * kernel border and the preview subsampling into account
+    */
+   public int[] toImageCoordinates(int i, int j) {
+      int offset = getOffset();
+      return new int[] {(j + offset) * scale, (i + offset) * scale};
+   }
+
    /**
     * @return # of rows in edges image. (Slightly smaller than original image because of convolutions)
     */
@@ -0,0 +1,333 @@
+/**************************************************************************
+ * @tags edge detection, image analysis, computer vision
+ *
+ * PURPOSE: Reuses the edges of images that were seen before.
+ *
+ * OVERVIEW: Results are keyed by a SHA-256 hash of the gray pixels and the
+ * detector parameters, so the same image with the same settings is
+ * recognized whatever file or request it came from.
+ *
+ *    memory tier: packed edge maps in least-recently-used order; the oldest
+ *                 are evicted once their total size exceeds a byte budget
+ *    disk tier (optional): one EdgeMapFile per key in a directory; a hit is
+ *                 moved into the memory tier. Entries are never evicted.
+ *
+ * Two threads that miss on the same key at once both compute it; the
+ * results are the same, so the second store is harmless.
+ **************************************************************************/
+
+package edgedetector.detectors;
+
+import edgedetector.util.EdgeMapFile;
+import edgedetector.util.PackedEdgeMap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+
+public class EdgeCache {
+
+   /***********************************************************************
+    * Static fields
+    **********************************************************************/
+
+   // estimated bytes of a memory entry besides its packed bits (key, map, list links)
+   private static final int ENTRY_OVERHEAD = 256;
+
+
+   /***********************************************************************
+    * Fields
+    **********************************************************************/
+
+   private final long maxBytes;
+   private final Path directory; // null without disk tier
+
+   // guarded by this
+   private final LinkedHashMap<String, PackedEdgeMap> memory = new LinkedHashMap<>(16, 0.75f, true);
+   private long bytes;
+
+   private final AtomicLong memoryHits = new AtomicLong();
+   private final AtomicLong diskHits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+   private final AtomicLong diskErrors = new AtomicLong();
+
+
+   /***********************************************************************
+    * Constructor
+    **********************************************************************/
+
+   private EdgeCache(Builder builder) {
+      this.maxBytes = builder.maxBytes;
+      this.directory = builder.directory;
+   }
+
+   /**
+    * Builder class for constructing EdgeCache objects.
+    */
+   public static class Builder {
+
+      // required parameters
+      private long maxBytes;
+
+      // optional parameters (default values given)
+      private Path directory = null;
+
+      /**
+       * @param maxBytes budget of the memory tier
+       */
+      public Builder(long maxBytes) {
+         if (maxBytes < 0)
+            throw new IllegalArgumentException("Invalid memory budget");
+         this.maxBytes = maxBytes;
+      }
+
+      /**
+       * Keep every result in this directory too (created if needed).
+       * @param directory
+       * @return
+       */
+      public Builder directory(String directory) {
+         this.directory = Paths.get(directory);
+         return this;
+      }
+
+      /**
+       * @throws UncheckedIOException if the directory cannot be created
+       */
+      public EdgeCache build() {
+         if (directory != null) {
+            try {
+               Files.createDirectories(directory);
+            } catch (IOException e) {
+               throw new UncheckedIOException(e);
+            }
+         }
+         return new EdgeCache(this);
+      }
+   }
+
+
+   /***********************************************************************
+    * Lookup
+    ***********************************************************************/
+
+   /**
+    * Edges of image by engine, computed only on a miss.
+    * @param engine
+    * @param image gray pixels
+    * @return shared result; do not modify it
+    */
+   public PackedEdgeMap detect(EdgeDetectorEngine engine, int[][] image) {
+      return get(image, engine.getParameters() + " v" + EdgeDetectorEngine.VERSION, pixels -> {
+         boolean[][] edges = new boolean[engine.outputRows(pixels.length)]
+                                        [engine.outputColumns(pixels[0].length)];
+         engine.detect(pixels, edges);
+         return edges;
+      });
+   }
+
+   /**
+    * Edges of image by any detector, for example
+    * get(pixels, "SOBEL L2", p -> new SobelEdgeDetector(p).getEdges()).
+    * @param image gray pixels
+    * @param parameters everything besides the pixels that affects the edges
+    * @param detector computes the edges on a miss
+    * @return shared result; do not modify it
+    */
+   public PackedEdgeMap get(int[][] image, String parameters, Function<int[][], boolean[][]> detector) {
+      String key = key(image, parameters);
+
+      PackedEdgeMap edges = fromMemory(key);
+      if (edges != null) {
+         memoryHits.incrementAndGet();
+         return edges;
+      }
+
+      edges = fromDisk(key);
+      if (edges != null) {
+         diskHits.incrementAndGet();
+         toMemory(key, edges);
+         return edges;
+      }
+
+      misses.incrementAndGet();
+      edges = new PackedEdgeMap(detector.apply(image));
+      toMemory(key, edges);
+      toDisk(key, edges);
+      return edges;
+   }
+
+   /**
+    * @return hex SHA-256 of the dimensions and pixels of image and of parameters
+    */
+   static String key(int[][] image, String parameters) {
+      MessageDigest digest;
+      try {
+         digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException("SHA-256 unavailable", e); // every JVM must provide it
+      }
+
+      int columns = (image.length == 0) ? 0 : image[0].length;
+      ByteBuffer row = ByteBuffer.allocate(Math.max(8, 4 * columns));
+      row.putInt(image.length).putInt(columns).flip();
+      digest.update(row);
+      for (int[] pixels : image) {
+         row.clear();
+         row.asIntBuffer().put(pixels, 0, columns);
+         row.limit(4 * columns);
+         digest.update(row);
+      }
+      digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+
+      StringBuilder hex = new StringBuilder(64);
+      for (byte b : digest.digest())
+         hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      return hex.toString();
+   }
+
+
+   /***********************************************************************
+    * Tiers
+    ***********************************************************************/
+
+   private synchronized PackedEdgeMap fromMemory(String key) {
+      return memory.get(key);
+   }
+
+   private synchronized void toMemory(String key, PackedEdgeMap edges) {
+      long size = sizeOf(edges);
+      if (size > maxBytes || memory.containsKey(key))
+         return;
+      memory.put(key, edges);
+      bytes += size;
+
+      // evict least recently used entries
+      Iterator<Map.Entry<String, PackedEdgeMap>> it = memory.entrySet().iterator();
+      while (bytes > maxBytes && it.hasNext()) {
+         PackedEdgeMap eldest = it.next().getValue();
+         it.remove();
+         bytes -= sizeOf(eldest);
+         evictions.incrementAndGet();
+      }
+   }
+
+   private static long sizeOf(PackedEdgeMap edges) {
+      return (long) edges.getBits().length + ENTRY_OVERHEAD;
+   }
+
+   /**
+    * @return edges stored under key, or null if there is no disk tier, no
+    * such file or it cannot be read (counted in getDiskErrors)
+    */
+   private PackedEdgeMap fromDisk(String key) {
+      if (directory == null)
+         return null;
+      Path file = directory.resolve(key + ".emap");
+      if (!Files.isRegularFile(file))
+         return null;
+      try {
+         return EdgeMapFile.read(file.toString());
+      } catch (IOException | RuntimeException e) {
+         diskErrors.incrementAndGet();
+         return null;
+      }
+   }
+
+   /**
+    * Writes under a temporary name and renames, so readers never see a partial file.
+    * A failed write only costs the disk tier that entry (counted in getDiskErrors).
+    */
+   private void toDisk(String key, PackedEdgeMap edges) {
+      if (directory == null)
+         return;
+      Path file = directory.resolve(key + ".emap");
+      Path part = directory.resolve(key + "." + Thread.currentThread().getId() + ".part");
+      try {
+         EdgeMapFile.write(part.toString(), edges);
+         Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+         diskErrors.incrementAndGet();
+         try {
+            Files.deleteIfExists(part);
+         } catch (IOException ignored) {
+            // nothing more to do; the entry is simply not on disk
+         }
+      }
+   }
+
+   /**
+    * Empties the memory tier (the disk tier is kept).
+    */
+   public synchronized void clearMemory() {
+      memory.clear();
+      bytes = 0;
+   }
+
+
+   /***********************************************************************
+    * Accessors
+    ***********************************************************************/
+
+   public long getMemoryHits() {
+      return memoryHits.get();
+   }
+
+   public long getDiskHits() {
+      return diskHits.get();
+   }
+
+   public long getMisses() {
+      return misses.get();
+   }
+
+   /**
+    * @return # of entries evicted from the memory tier
+    */
+   public long getEvictions() {
+      return evictions.get();
+   }
+
+   /**
+    * @return # of disk tier files that could not be read or written
+    */
+   public long getDiskErrors() {
+      return diskErrors.get();
+   }
+
+   /**
+    * @return estimated bytes held by the memory tier
+    */
+   public synchronized long getMemoryBytes() {
+      return bytes;
+   }
+
+   public synchronized int getMemoryEntries() {
+      return memory.size();
+   }
+
+   public long getMaxBytes() {
+      return maxBytes;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("%d memory hits, %d disk hits, %d misses, %d evictions, %d entries / %d bytes in memory",
+                           getMemoryHits(), getDiskHits(), getMisses(), getEvictions(), getMemoryEntries(),
+                           getMemoryBytes());
+   }
+}
@@ -0,0 +1,1189 @@
+/**************************************************************************
+ * @tags edge detection, image analysis, computer vision
+ *
+ * PURPOSE: Reusable edge detector for streams of frames.
+ *
+ * OVERVIEW: The detector classes do all their work in the constructor and
+ * allocate every intermediate image again for every frame. An engine is
+ * configured once and then called with detect(input, output) as often as
+ * needed, from any number of threads. Intermediates live in flat arrays in a
+ * per-thread workspace that is only reallocated when a frame has more pixels
+ * than any frame before it on that thread, so after warm-up a stream of
+ * same-size frames allocates nothing.
+ *
+ * Canny runs fused, row by row: every gray row is smoothed, differentiated
+ * and suppressed as soon as the rows it needs have arrived, through ring
+ * buffers of a few rows (RowStream). Only suppressed rows go on to
+ * hysteresis, as weak/strong classes (or as magnitudes when thresholds are
+ * calculated), so the smoothed image, magnitudes and directions never exist
+ * as full planes and the working set depends only on the image width.
+ * stream(width) hands out the same pipeline for rows pushed while decoding,
+ * and stream(width, sink) one that hands the suppressed rows to the caller's
+ * hysteresis instead (TiledEdgeDetector, OutOfCoreCannyDetector).
+ *
+ * Results are identical to SobelEdgeDetector, PrewittEdgeDetector,
+ * RobertsCrossEdgeDetector and CannyEdgeDetector (with minEdgeSize applied);
+ * main() checks every input path against them on a given image.
+ * Automatic Canny thresholds run KMeans, which allocates; give explicit
+ * thresholds for allocation-free detection.
+ **************************************************************************/
+
+package edgedetector.detectors;
+
+import edgedetector.grayscale.Grayscale;
+import edgedetector.imagederivatives.ConvolutionKernel;
+import edgedetector.util.NonMaximumSuppression;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+public class EdgeDetectorEngine {
+
+   /***********************************************************************
+    * Static fields
+    **********************************************************************/
+
+   /**
+    * Version of the detection code. Increase it whenever a change alters the
+    * edges found for some input, so that stored results are recomputed.
+    */
+   public static final int VERSION = 1;
+
+   // hysteresis classes of a pixel
+   private static final byte NONE = 0;
+   private static final byte WEAK = 1;
+   private static final byte STRONG = 2;
+   private static final byte VISITED = 4;
+
+   // edge direction codes (EdgeDirection ordinals)
+   private static final int VERTICAL = NonMaximumSuppression.EdgeDirection.VERTICAL.ordinal();
+   private static final int HORIZONTAL = NonMaximumSuppression.EdgeDirection.HORIZONTAL.ordinal();
+   private static final int DIAG_LEFT_UP = NonMaximumSuppression.EdgeDirection.DIAG_LEFT_UP.ordinal();
+
+   // DIRECTIONS[gx << 8 | gy] = EdgeDirection.getDirection(gx, gy).ordinal();
+   // convolutions clamp to [0, 255], so these are all possible gradients
+   private static final byte[] DIRECTIONS = new byte[1 << 16];
+   static {
+      for (int gx = 0; gx < 256; gx++)
+         for (int gy = 0; gy < 256; gy++)
+            DIRECTIONS[gx << 8 | gy] = (byte) NonMaximumSuppression.EdgeDirection.getDirection(gx, gy).ordinal();
+   }
+
+
+   /***********************************************************************
+    * Fields
+    **********************************************************************/
+
+   private final EdgeOperator operator; // null for Canny
+   private final boolean canny;
+   private final boolean calcThreshold;
+   private final int lowThreshold;
+   private final int highThreshold;
+   private final int minEdgeSize;
+   private final boolean L1norm;
+
+   // gradient kernels, flattened row by row
+   private final int kernelRows;
+   private final int kernelColumns;
+   private final int[] xKernel;
+   private final int[] yKernel;
+
+   // Gaussian smoothing kernel (Canny only), flattened row by row
+   private final int gaussRows;
+   private final int gaussColumns;
+   private final double[] gaussKernel;
+
+   private final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(Workspace::new);
+
+
+   /***********************************************************************
+    * Constructor
+    **********************************************************************/
+
+   private EdgeDetectorEngine(Builder builder) {
+      this.operator = builder.canny ? null : builder.operator;
+      this.canny = builder.canny;
+      this.calcThreshold = builder.calcThreshold;
+      this.lowThreshold = builder.lowThreshold;
+      this.highThreshold = builder.highThreshold;
+      this.minEdgeSize = builder.minEdgeSize;
+      this.L1norm = builder.L1norm;
+
+      double[][] x = canny ? CannyEdgeDetector.getX_KERNEL() : builder.operator.getXkernel();
+      double[][] y = canny ? CannyEdgeDetector.getyKernel() : builder.operator.getYkernel();
+      this.kernelRows = x.length;
+      this.kernelColumns = x[0].length;
+      this.xKernel = integerKernel(x);
+      this.yKernel = integerKernel(y);
+
+      double[][] gauss = ConvolutionKernel.GAUSSIAN_KERNEL;
+      this.gaussRows = canny ? gauss.length : 1;
+      this.gaussColumns = canny ? gauss[0].length : 1;
+      this.gaussKernel = new double[gaussRows * gaussColumns];
+      if (canny)
+         for (int k = 0; k < gaussRows; k++)
+            System.arraycopy(gauss[k], 0, gaussKernel, k * gaussColumns, gaussColumns);
+   }
+
+   /**
+    * Builder class for constructing EdgeDetectorEngine objects.
+    */
+   public static class Builder {
+
+      // optional parameters (default values given)
+      private EdgeOperator operator = EdgeOperator.SOBEL;
+      private boolean canny = false;
+      private boolean calcThreshold = true;
+      private int lowThreshold;
+      private int highThreshold;
+      private int minEdgeSize = 0;
+      private boolean L1norm = false;
+
+      /**
+       * Detect edges like the GaussianEdgeDetector subclass using this operator.
+       * @param operator
+       * @return
+       */
+      public Builder operator(EdgeOperator operator) {
+         this.operator = operator;
+         this.canny = false;
+         return this;
+      }
+
+      /**
+       * Detect edges like CannyEdgeDetector, with thresholds calculated for every frame.
+       * @return
+       */
+      public Builder canny() {
+         this.canny = true;
+         this.calcThreshold = true;
+         return this;
+      }
+
+      /**
+       * Detect edges like CannyEdgeDetector with these thresholds.
+       * @param lowThreshold
+       * @param highThreshold
+       * @return
+       */
+      public Builder canny(int lowThreshold, int highThreshold) {
+         if (lowThreshold > highThreshold || lowThreshold < 0 || highThreshold > 255)
+            throw new IllegalArgumentException("Invalid threshold values");
+         this.canny = true;
+         this.calcThreshold = false;
+         this.lowThreshold = lowThreshold;
+         this.highThreshold = highThreshold;
+         return this;
+      }
+
+      /**
+       * Minimum number of pixels an edge must contain to be kept (Canny only).
+       * @param minEdgeSize
+       * @return
+       */
+      public Builder minEdgeSize(int minEdgeSize) {
+         this.minEdgeSize = minEdgeSize;
+         return this;
+      }
+
+      public Builder L1norm(boolean L1norm) {
+         this.L1norm = L1norm;
+         return this;
+      }
+
+      public EdgeDetectorEngine build() {
+         return new EdgeDetectorEngine(this);
+      }
+   }
+
+   /**
+    * Per-thread intermediates, grown but never shrunk.
+    */
+   private static final class Workspace {
+      int capacity; // pixels every array below can hold
+      int[] gray = new int[0]; // flattened input of the int[][] and BufferedImage variants
+      int[] smoothed = new int[0];
+      int[] mag = new int[0];
+      byte[] direction = new byte[0];
+      byte[] classes = new byte[0];
+      boolean[] edges = new boolean[0]; // flat output of the boolean[][] variant
+      int[] stack = new int[64];
+      int[] component = new int[64];
+      int[] histogram = new int[512]; // magnitudes are at most 255 + 255
+      RowStream stream; // fused Canny of the last width detected on this thread
+
+      // thresholds of the last frame
+      int threshold;
+      int lowThreshold;
+      int highThreshold;
+
+      void ensureCapacity(int pixels) {
+         if (pixels <= capacity)
+            return;
+         gray = new int[pixels];
+         smoothed = new int[pixels];
+         mag = new int[pixels];
+         direction = new byte[pixels];
+         classes = new byte[pixels];
+         edges = new boolean[pixels];
+         capacity = pixels;
+      }
+
+      void ensureGray(int pixels) {
+         if (gray.length < pixels)
+            gray = new int[pixels];
+      }
+
+      void ensureEdges(int pixels) {
+         if (edges.length < pixels)
+            edges = new boolean[pixels];
+      }
+
+      /**
+       * Grows the magnitudes and directions, all that Sobel, Prewitt and
+       * Roberts Cross use.
+       */
+      void ensureGradient(int pixels) {
+         if (mag.length < pixels)
+            mag = new int[pixels];
+         if (direction.length < pixels)
+            direction = new byte[pixels];
+      }
+
+      /**
+       * Grows the hysteresis input (classes, and suppressed magnitudes if
+       * thresholds are calculated), keeping what has been filled in.
+       */
+      void ensureHysteresis(int pixels, boolean magnitudes) {
+         if (classes.length < pixels)
+            classes = Arrays.copyOf(classes, Math.max(pixels, 2 * classes.length));
+         if (magnitudes && mag.length < pixels)
+            mag = Arrays.copyOf(mag, Math.max(pixels, 2 * mag.length));
+      }
+   }
+
+
+   /***********************************************************************
+    * Detection
+    ***********************************************************************/
+
+   /**
+    * @return # of rows of the edges of an image with height rows
+    */
+   public int outputRows(int height) {
+      return height - (gaussRows - 1) - (kernelRows - 1);
+   }
+
+   /**
+    * @return # of columns of the edges of an image with width columns
+    */
+   public int outputColumns(int width) {
+      return width - (gaussColumns - 1) - (kernelColumns - 1);
+   }
+
+   /**
+    * Finds edges of a flat, row-major gray image.
+    * @param gray pixel (x, y) at y * width + x
+    * @param edges receives outputRows(height) * outputColumns(width) values, row-major
+    * @return # of edge pixels
+    */
+   public int detect(int[] gray, int width, int height, boolean[] edges) {
+      Workspace ws = workspaces.get();
+      if (!canny)
+         ws.ensureGradient(width * height);
+      return detect(ws, gray, width, height, edges);
+   }
+
+   /**
+    * Finds edges of a gray image given as [row][column].
+    * @param edges receives outputRows(image.length) x outputColumns(image[0].length) values
+    * @return # of edge pixels
+    */
+   public int detect(int[][] image, boolean[][] edges) {
+      int height = image.length;
+      int width = image[0].length;
+      Workspace ws = workspaces.get();
+      int count;
+      if (canny) {
+         // rows go straight into the fused pipeline
+         ws.ensureEdges(width * height);
+         RowStream stream = stream(ws, width);
+         for (int i = 0; i < height; i++)
+            stream.push(image[i]);
+         count = stream.finish(ws.edges);
+      } else {
+         ws.ensureGray(width * height);
+         ws.ensureEdges(width * height);
+         ws.ensureGradient(width * height);
+         for (int i = 0; i < height; i++)
+            System.arraycopy(image[i], 0, ws.gray, i * width, width);
+         count = detect(ws, ws.gray, width, height, ws.edges);
+      }
+      int columns = outputColumns(width);
+      for (int i = 0; i < outputRows(height); i++)
+         System.arraycopy(ws.edges, i * columns, edges[i], 0, columns);
+      return count;
+   }
+
+   /**
+    * Finds edges of an image, converted to gray as by Grayscale.imgToGrayPixels.
+    * @param edges receives outputRows(height) * outputColumns(width) values, row-major
+    * @return # of edge pixels
+    */
+   public int detect(BufferedImage image, boolean[] edges) {
+      int width = image.getWidth();
+      int height = image.getHeight();
+      Workspace ws = workspaces.get();
+      ws.ensureGray(width * height);
+      if (!canny)
+         ws.ensureGradient(width * height);
+      Grayscale.imgToGrayBuffer(image, ws.gray, false);
+      return detect(ws, ws.gray, width, height, edges);
+   }
+
+   /**
+    * Gradient magnitudes (of the smoothed image for Canny) before non-maximum
+    * suppression.
+    * @param gray pixel (x, y) at y * width + x
+    * @param mag receives outputRows(height) * outputColumns(width) values, row-major
+    */
+   public void magnitudes(int[] gray, int width, int height, int[] mag) {
+      int rows = outputRows(height);
+      int columns = outputColumns(width);
+      if (rows <= 0 || columns <= 0)
+         throw new IllegalArgumentException("Image smaller than the convolution kernels");
+      if (gray.length < width * height)
+         throw new IllegalArgumentException("Gray buffer too small");
+      if (mag.length < rows * columns)
+         throw new IllegalArgumentException("Magnitude buffer too small");
+
+      Workspace ws = workspaces.get();
+      if (!canny) {
+         ws.ensureGradient(width * height);
+         gradient(gray, width, mag, ws.direction, columns, 0, rows, 0, columns);
+         return;
+      }
+      ws.ensureCapacity(width * height);
+      int sw = width - gaussColumns + 1;
+      int sh = height - gaussRows + 1;
+      smooth(gray, width, ws.smoothed, sw, 0, sh, 0, sw);
+      gradient(ws.smoothed, sw, mag, ws.direction, columns, 0, rows, 0, columns);
+   }
+
+   /**
+    * Canny restricted to blocks of the output: smoothing, gradient and
+    * non-maximum suppression run only for pixels of flagged blocks (plus the
+    * one-pixel halo suppression needs), and only those pixels can be edges.
+    * Inside the flagged area the result equals detect() except where in-place
+    * suppression chains or edges reach across its border. Calculated
+    * thresholds come from the magnitudes of flagged pixels only; with no
+    * block flagged there are no edges.
+    * @param gray pixel (x, y) at y * width + x
+    * @param blocks flags of blockSize x blockSize output blocks, row-major, with
+    *        ceil(outputColumns(width) / blockSize) blocks per row
+    * @param edges receives outputRows(height) * outputColumns(width) values, row-major
+    * @return # of edge pixels
+    */
+   public int detect(int[] gray, int width, int height, boolean[] blocks, int blockSize, boolean[] edges) {
+      if (!canny)
+         throw new IllegalArgumentException("Block-restricted detection needs a Canny engine");
+      if (blockSize < 1)
+         throw new IllegalArgumentException("Invalid block size");
+      int rows = outputRows(height);
+      int columns = outputColumns(width);
+      if (rows <= 0 || columns <= 0)
+         throw new IllegalArgumentException("Image smaller than the convolution kernels");
+      int blocksX = (columns + blockSize - 1) / blockSize;
+      int blocksY = (rows + blockSize - 1) / blockSize;
+      if (blocks.length < blocksX * blocksY)
+         throw new IllegalArgumentException("Block buffer too small");
+      if (gray.length < width * height)
+         throw new IllegalArgumentException("Gray buffer too small");
+      if (edges.length < rows * columns)
+         throw new IllegalArgumentException("Edge buffer too small");
+
+      boolean any = false;
+      for (int b = 0; b < blocksX * blocksY && !any; b++)
+         any = blocks[b];
+      if (!any) {
+         Arrays.fill(edges, 0, rows * columns, false);
+         return 0;
+      }
+
+      Workspace ws = workspaces.get();
+      ws.ensureCapacity(width * height);
+      int sw = width - gaussColumns + 1;
+      int[] mag = ws.mag;
+      Arrays.fill(mag, 0, rows * columns, 0);
+
+      // smoothing and gradient per run of flagged blocks, with the suppression halo
+      for (int by = 0; by < blocksY; by++) {
+         int i0 = Math.max(0, by * blockSize - 1);
+         int i1 = Math.min(rows, (by + 1) * blockSize + 1);
+         for (int bx = 0; bx < blocksX; bx++) {
+            if (!blocks[by * blocksX + bx])
+               continue;
+            int run = bx;
+            while (run + 1 < blocksX && blocks[by * blocksX + run + 1])
+               run++;
+            int j0 = Math.max(0, bx * blockSize - 1);
+            int j1 = Math.min(columns, (run + 1) * blockSize + 1);
+            smooth(gray, width, ws.smoothed, sw, i0, i1 + kernelRows - 1, j0, j1 + kernelColumns - 1);
+            gradient(ws.smoothed, sw, mag, ws.direction, columns, i0, i1, j0, j1);
+            bx = run;
+         }
+      }
+
+      // suppression in raster order over flagged pixels, as in RowStream
+      for (int i = 0; i < rows; i++) {
+         int row = (i / blockSize) * blocksX;
+         for (int bx = 0; bx < blocksX; bx++) {
+            if (!blocks[row + bx])
+               continue;
+            for (int j = bx * blockSize; j < Math.min(columns, (bx + 1) * blockSize); j++)
+               if (isMaximum(mag, ws.direction[i * columns + j], i, j, rows, columns))
+                  mag[i * columns + j] = 0;
+         }
+      }
+
+      // halo pixels were only context
+      for (int i = 0; i < rows; i++) {
+         int by = i / blockSize;
+         for (int bx = 0; bx < blocksX; bx++)
+            if (!blocks[by * blocksX + bx] && nextToFlagged(blocks, blocksX, blocksY, by, bx))
+               Arrays.fill(mag, i * columns + bx * blockSize, i * columns + Math.min(columns, (bx + 1) * blockSize), 0);
+      }
+
+      classify(ws, rows, columns, blocks, blocksX, blockSize);
+      if (ws.lowThreshold == 0) {
+         // a zero low threshold would make skipped pixels weak
+         for (int i = 0; i < rows; i++) {
+            int row = (i / blockSize) * blocksX;
+            for (int bx = 0; bx < blocksX; bx++)
+               if (!blocks[row + bx])
+                  Arrays.fill(ws.classes, i * columns + bx * blockSize,
+                              i * columns + Math.min(columns, (bx + 1) * blockSize), NONE);
+         }
+      }
+      return trace(ws, rows, columns, edges);
+   }
+
+   private int detect(Workspace ws, int[] gray, int width, int height, boolean[] edges) {
+      int rows = outputRows(height);
+      int columns = outputColumns(width);
+      if (rows <= 0 || columns <= 0)
+         throw new IllegalArgumentException("Image smaller than the convolution kernels");
+      if (gray.length < width * height)
+         throw new IllegalArgumentException("Gray buffer too small");
+      if (edges.length < rows * columns)
+         throw new IllegalArgumentException("Edge buffer too small");
+
+      if (!canny) {
+         gradient(gray, width, ws.mag, ws.direction, columns, 0, rows, 0, columns);
+         return suppressAndThreshold(ws, rows, columns, edges);
+      }
+
+      ws.ensureHysteresis(rows * columns, calcThreshold);
+      RowStream stream = stream(ws, width);
+      for (int i = 0; i < height; i++)
+         stream.push(gray, i * width);
+      return stream.finish(edges);
+   }
+
+   /**
+    * Fused Canny for gray rows of an image width pixels wide, pushed top to
+    * bottom, e.g. while they are decoded. The stream has its own workspace,
+    * so it may be used on any one thread at a time.
+    */
+   public RowStream stream(int width) {
+      if (!canny)
+         throw new IllegalArgumentException("Row streaming needs a Canny engine");
+      return new RowStream(width, new Workspace(), null);
+   }
+
+   /**
+    * Fused smoothing, gradient and suppression only: every suppressed row is
+    * handed to sink, in order, and end() replaces finish(). Thresholds and
+    * minEdgeSize of the engine are not used; the sink does its own hysteresis.
+    */
+   public RowStream stream(int width, RowSink sink) {
+      if (!canny)
+         throw new IllegalArgumentException("Row streaming needs a Canny engine");
+      if (sink == null)
+         throw new IllegalArgumentException("No row sink");
+      return new RowStream(width, null, sink);
+   }
+
+   /**
+    * Receives the rows of a RowStream after non-maximum suppression.
+    */
+   public interface RowSink {
+
+      /**
+       * @param i output row
+       * @param suppressed magnitudes of row i after suppression; only valid during the call
+       */
+      void accept(int i, int[] suppressed);
+   }
+
+   private RowStream stream(Workspace ws, int width) {
+      if (ws.stream == null || ws.stream.width != width)
+         ws.stream = new RowStream(width, ws, null);
+      ws.stream.reset();
+      return ws.stream;
+   }
+
+   /**
+    * Canny with smoothing, gradient and in-place suppression fused: a row is
+    * smoothed once the gray rows under the Gaussian have arrived, its
+    * gradient computed once the smoothed rows under the Sobel kernels have,
+    * and it is suppressed once the gradient row below it exists. Each stage
+    * keeps a ring of the few rows the next one reads, so pushing a row costs
+    * no allocation and touches about 50 bytes per column. Suppressed rows are
+    * handed to hysteresis and the ring slots reused.
+    */
+   public final class RowStream {
+
+      private final int width;
+      private final int smoothedWidth;
+      private final int columns;
+      private final Workspace ws; // hysteresis; null with a sink
+      private final RowSink sink;
+
+      // ring buffers; row r of a stage is at index r % length
+      private final int[][] grayRows;
+      private final int[][] smoothedRows;
+      private final int[][] magRows;       // rows above the newest are suppressed already
+      private final byte[][] directionRows;
+
+      // per-column sums of the row being smoothed or differentiated
+      private final double[] smoothedSum;
+      private final int[] xSum;
+      private final int[] ySum;
+
+      private int rowsIn;
+
+      private RowStream(int width, Workspace ws, RowSink sink) {
+         this.width = width;
+         this.smoothedWidth = width - gaussColumns + 1;
+         this.columns = outputColumns(width);
+         if (columns <= 0)
+            throw new IllegalArgumentException("Image narrower than the convolution kernels");
+         this.ws = ws;
+         this.sink = sink;
+         this.grayRows = new int[gaussRows][width];
+         this.smoothedRows = new int[kernelRows][smoothedWidth];
+         this.magRows = new int[3][columns];
+         this.directionRows = new byte[3][columns];
+         this.smoothedSum = new double[smoothedWidth];
+         this.xSum = new int[columns];
+         this.ySum = new int[columns];
+      }
+
+      /**
+       * Consumes the next row of the image.
+       * @param row width gray pixels
+       */
+      public void push(int[] row) {
+         push(row, 0);
+      }
+
+      /**
+       * Consumes the next row of the image, found at gray[offset, offset + width).
+       */
+      public void push(int[] gray, int offset) {
+         if (offset < 0 || offset + width > gray.length)
+            throw new IllegalArgumentException("Row outside of gray buffer");
+         System.arraycopy(gray, offset, grayRows[rowsIn % gaussRows], 0, width);
+         rowsIn++;
+
+         int s = rowsIn - gaussRows; // smoothed row completed by this row
+         if (s < 0)
+            return;
+         smoothRow(s);
+         int g = s - kernelRows + 1; // gradient row completed by it
+         if (g < 0)
+            return;
+         gradientRow(g);
+         if (g > 0)
+            suppressRow(g - 1, true);
+      }
+
+      /**
+       * Suppresses the last row, runs hysteresis and resets the stream for
+       * the next image.
+       * @param edges receives getRows() * getColumns() values, row-major
+       * @return # of edge pixels
+       */
+      public int finish(boolean[] edges) {
+         if (sink != null)
+            throw new IllegalStateException("Stream hands its rows to a sink; call end()");
+         int rows = getRows();
+         if (rows <= 0)
+            throw new IllegalArgumentException("Image smaller than the convolution kernels");
+         if (edges.length < rows * columns)
+            throw new IllegalArgumentException("Edge buffer too small");
+         suppressRow(rows - 1, false);
+
+         if (calcThreshold) {
+            classify(ws, rows, columns, null, 0, 0);
+         } else {
+            ws.lowThreshold = lowThreshold;
+            ws.highThreshold = highThreshold;
+         }
+         int count = trace(ws, rows, columns, edges);
+         reset();
+         return count;
+      }
+
+      /**
+       * Suppresses the last row and hands it to the sink, then resets the
+       * stream for the next image.
+       * @return # of rows handed to the sink
+       */
+      public int end() {
+         if (sink == null)
+            throw new IllegalStateException("Stream runs hysteresis itself; call finish()");
+         int rows = getRows();
+         if (rows <= 0)
+            throw new IllegalArgumentException("Image smaller than the convolution kernels");
+         suppressRow(rows - 1, false);
+         reset();
+         return rows;
+      }
+
+      /**
+       * Drops the rows pushed so far.
+       */
+      public void reset() {
+         rowsIn = 0;
+      }
+
+      /**
+       * Row version of smooth(): smoothed row s from gray rows s to s + gaussRows - 1.
+       * Kernel weights are applied one at a time across the row, which adds
+       * them to every pixel in the same order as ImageConvolution.
+       */
+      private void smoothRow(int s) {
+         double[] sum = smoothedSum;
+         Arrays.fill(sum, 0);
+         for (int k = 0; k < gaussRows; k++) {
+            int[] in = grayRows[(s + k) % gaussRows];
+            for (int l = 0; l < gaussColumns; l++) {
+               double weight = gaussKernel[k * gaussColumns + l];
+               for (int j = 0; j < smoothedWidth; j++)
+                  sum[j] += weight * in[j + l];
+            }
+         }
+         int[] out = smoothedRows[s % kernelRows];
+         for (int j = 0; j < smoothedWidth; j++)
+            out[j] = (sum[j] > 255) ? 255 : (sum[j] < 0) ? 0 : (int) sum[j];
+      }
+
+      /**
+       * Row version of gradient(): gradient row g from smoothed rows g to g + kernelRows - 1.
+       */
+      private void gradientRow(int g) {
+         int[] sx = xSum;
+         int[] sy = ySum;
+         Arrays.fill(sx, 0);
+         Arrays.fill(sy, 0);
+         for (int k = 0; k < kernelRows; k++) {
+            int[] in = smoothedRows[(g + k) % kernelRows];
+            for (int l = 0; l < kernelColumns; l++) {
+               int wx = xKernel[k * kernelColumns + l];
+               int wy = yKernel[k * kernelColumns + l];
+               for (int j = 0; j < columns; j++) {
+                  sx[j] += wx * in[j + l];
+                  sy[j] += wy * in[j + l];
+               }
+            }
+         }
+
+         int[] mag = magRows[g % 3];
+         byte[] direction = directionRows[g % 3];
+         for (int j = 0; j < columns; j++) {
+            int gx = (sx[j] > 255) ? 255 : (sx[j] < 0) ? 0 : sx[j];
+            int gy = (sy[j] > 255) ? 255 : (sy[j] < 0) ? 0 : sy[j];
+
+            mag[j] = L1norm ? gx + gy : (int) Math.sqrt(gx * gx + gy * gy);
+            direction[j] = DIRECTIONS[gx << 8 | gy];
+         }
+      }
+
+      /**
+       * CannyEdgeDetector's in-place suppression of row i (zeroes every pixel
+       * that nonMaximumSuppression() reports as a maximum, left to right),
+       * then hands the row to the sink or to hysteresis.
+       * @param hasBelow whether gradient row i + 1 exists
+       */
+      private void suppressRow(int i, boolean hasBelow) {
+         int[] above = (i > 0) ? magRows[(i - 1) % 3] : null;
+         int[] row = magRows[i % 3];
+         int[] below = hasBelow ? magRows[(i + 1) % 3] : null;
+         byte[] direction = directionRows[i % 3];
+         for (int j = 0; j < columns; j++)
+            if (isMaximum(above, row, below, direction[j], j, columns))
+               row[j] = 0;
+
+         if (sink != null) {
+            sink.accept(i, row);
+            return;
+         }
+         int p = i * columns;
+         ws.ensureHysteresis(p + columns, calcThreshold);
+         if (calcThreshold) {
+            System.arraycopy(row, 0, ws.mag, p, columns);
+            return;
+         }
+         byte[] classes = ws.classes;
+         for (int j = 0; j < columns; j++)
+            classes[p + j] = (row[j] >= highThreshold) ? STRONG : (row[j] >= lowThreshold) ? WEAK : NONE;
+      }
+
+      /**
+       * @return # of output rows of the rows pushed so far
+       */
+      public int getRows() {
+         return Math.max(0, outputRows(rowsIn));
+      }
+
+      public int getColumns() {
+         return columns;
+      }
+
+      /**
+       * @return low threshold of the last image finished (hysteresis streams only)
+       */
+      public int getLowThreshold() {
+         return (ws != null) ? ws.lowThreshold : 0;
+      }
+
+      /**
+       * @return high threshold of the last image finished (hysteresis streams only)
+       */
+      public int getHighThreshold() {
+         return (ws != null) ? ws.highThreshold : 0;
+      }
+   }
+
+
+   /***********************************************************************
+    * Steps
+    ***********************************************************************/
+
+   /**
+    * Gaussian smoothing of rows [i0, i1) and columns [j0, j1) of the output,
+    * summing in the same order as ImageConvolution.
+    */
+   private void smooth(int[] image, int width, int[] out, int outWidth, int i0, int i1, int j0, int j1) {
+      for (int i = i0; i < i1; i++) {
+         for (int j = j0; j < j1; j++) {
+            double smoothed = 0;
+            for (int k = 0; k < gaussRows; k++) {
+               int p = (i + k) * width + j;
+               int q = k * gaussColumns;
+               for (int l = 0; l < gaussColumns; l++)
+                  smoothed += gaussKernel[q + l] * image[p + l];
+            }
+            out[i * outWidth + j] = (smoothed > 255) ? 255 : (smoothed < 0) ? 0 : (int) smoothed;
+         }
+      }
+   }
+
+   /**
+    * Gradient magnitude and direction code of rows [i0, i1) and columns
+    * [j0, j1) of an output columns wide. The gradient kernels have integer
+    * weights, so integer sums equal ImageConvolution's.
+    */
+   private void gradient(int[] image, int width, int[] mag, byte[] direction, int columns,
+                         int i0, int i1, int j0, int j1) {
+      for (int i = i0; i < i1; i++) {
+         for (int j = j0; j < j1; j++) {
+            int sx = 0;
+            int sy = 0;
+            for (int k = 0; k < kernelRows; k++) {
+               int p = (i + k) * width + j;
+               int q = k * kernelColumns;
+               for (int l = 0; l < kernelColumns; l++) {
+                  sx += xKernel[q + l] * image[p + l];
+                  sy += yKernel[q + l] * image[p + l];
+               }
+            }
+            int gx = (sx > 255) ? 255 : (sx < 0) ? 0 : sx;
+            int gy = (sy > 255) ? 255 : (sy < 0) ? 0 : sy;
+
+            int p = i * columns + j;
+            mag[p] = L1norm ? gx + gy : (int) Math.sqrt(gx * gx + gy * gy);
+            direction[p] = DIRECTIONS[gx << 8 | gy];
+         }
+      }
+   }
+
+   /**
+    * GaussianEdgeDetector: threshold is the mean magnitude; an edge is at or
+    * above it and not suppressed.
+    */
+   private int suppressAndThreshold(Workspace ws, int rows, int columns, boolean[] edges) {
+      int[] mag = ws.mag;
+      long sum = 0;
+      for (int p = 0; p < rows * columns; p++)
+         sum += mag[p];
+      int threshold = (int) (sum / (double) (rows * columns));
+      ws.threshold = threshold;
+
+      int count = 0;
+      for (int i = 0; i < rows; i++) {
+         for (int j = 0; j < columns; j++) {
+            int p = i * columns + j;
+            boolean edge = mag[p] >= threshold && isMaximum(mag, ws.direction[p], i, j, rows, columns);
+            edges[p] = edge;
+            if (edge)
+               count++;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Same as NonMaximumSuppression.nonMaximumSuppression() on flat magnitudes.
+    */
+   private static boolean isMaximum(int[] mag, int direction, int i, int j, int rows, int columns) {
+      int di1, dj1; // first neighbor; the second is opposite
+      if (direction == VERTICAL) {
+         di1 = -1; dj1 = 0;
+      } else if (direction == HORIZONTAL) {
+         di1 = 0; dj1 = -1;
+      } else if (direction == DIAG_LEFT_UP) {
+         di1 = -1; dj1 = -1;
+      } else {
+         di1 = -1; dj1 = 1;
+      }
+      int m = mag[i * columns + j];
+
+      int i1 = i + di1, j1 = j + dj1;
+      if (i1 >= 0 && i1 < rows && j1 >= 0 && j1 < columns && mag[i1 * columns + j1] > m)
+         return false;
+      int i2 = i - di1, j2 = j - dj1;
+      return !(i2 >= 0 && i2 < rows && j2 >= 0 && j2 < columns && mag[i2 * columns + j2] > m);
+   }
+
+   /**
+    * isMaximum() on the ring rows of RowStream; above or below is null at the
+    * image border.
+    */
+   private static boolean isMaximum(int[] above, int[] row, int[] below, int direction, int j, int columns) {
+      int di1, dj1; // first neighbor; the second is opposite
+      if (direction == VERTICAL) {
+         di1 = -1; dj1 = 0;
+      } else if (direction == HORIZONTAL) {
+         di1 = 0; dj1 = -1;
+      } else if (direction == DIAG_LEFT_UP) {
+         di1 = -1; dj1 = -1;
+      } else {
+         di1 = -1; dj1 = 1;
+      }
+      int m = row[j];
+
+      int[] first = (di1 < 0) ? above : row;
+      int[] second = (di1 < 0) ? below : row;
+      int j1 = j + dj1;
+      if (first != null && j1 >= 0 && j1 < columns && first[j1] > m)
+         return false;
+      int j2 = j - dj1;
+      return !(second != null && j2 >= 0 && j2 < columns && second[j2] > m);
+   }
+
+   /**
+    * Double thresholding into weak and strong classes. With blocks, calculated
+    * thresholds only count the pixels of flagged blocks.
+    */
+   private void classify(Workspace ws, int rows, int columns, boolean[] blocks, int blocksX, int blockSize) {
+      int[] mag = ws.mag;
+      int pixels = rows * columns;
+      int low = lowThreshold;
+      int high = highThreshold;
+
+      if (calcThreshold) {
+         int[] histogram = ws.histogram;
+         Arrays.fill(histogram, 0);
+         int maxMag = 0;
+         if (blocks == null) {
+            for (int p = 0; p < pixels; p++) {
+               histogram[mag[p]]++;
+               maxMag = Math.max(maxMag, mag[p]);
+            }
+         } else {
+            // skipped blocks hold zeros, not magnitudes
+            for (int i = 0; i < rows; i++) {
+               int row = (i / blockSize) * blocksX;
+               for (int bx = 0; bx < blocksX; bx++) {
+                  if (!blocks[row + bx])
+                     continue;
+                  for (int p = i * columns + bx * blockSize; p < i * columns + Math.min(columns, (bx + 1) * blockSize); p++) {
+                     histogram[mag[p]]++;
+                     maxMag = Math.max(maxMag, mag[p]);
+                  }
+               }
+            }
+         }
+         int[] thresholds = CannyEdgeDetector.calcThresholds(histogram, maxMag);
+         low = thresholds[0];
+         high = thresholds[1];
+      }
+      ws.lowThreshold = low;
+      ws.highThreshold = high;
+
+      byte[] classes = ws.classes;
+      for (int p = 0; p < pixels; p++)
+         classes[p] = (mag[p] >= high) ? STRONG : (mag[p] >= low) ? WEAK : NONE;
+   }
+
+   /**
+    * Keeps every 8-connected group of weak and strong pixels that contains a
+    * strong pixel and at least minEdgeSize pixels. Iterative, with the stack
+    * in the workspace.
+    */
+   private int trace(Workspace ws, int rows, int columns, boolean[] edges) {
+      byte[] classes = ws.classes;
+      Arrays.fill(edges, 0, rows * columns, false);
+      int count = 0;
+
+      for (int start = 0; start < rows * columns; start++) {
+         if (classes[start] != STRONG)
+            continue;
+
+         int size = 0;
+         int top = 0;
+         ws.stack[top++] = start;
+         classes[start] |= VISITED;
+
+         while (top > 0) {
+            int index = ws.stack[--top];
+            if (size == ws.component.length)
+               ws.component = Arrays.copyOf(ws.component, 2 * size);
+            ws.component[size++] = index;
+
+            int pr = index / columns;
+            int pc = index - pr * columns;
+            for (int nr = Math.max(0, pr - 1); nr <= Math.min(rows - 1, pr + 1); nr++) {
+               for (int nc = Math.max(0, pc - 1); nc <= Math.min(columns - 1, pc + 1); nc++) {
+                  int n = nr * columns + nc;
+                  byte cls = classes[n];
+                  if (cls == WEAK || cls == STRONG) {
+                     classes[n] = (byte) (cls | VISITED);
+                     if (top == ws.stack.length)
+                        ws.stack = Arrays.copyOf(ws.stack, 2 * top);
+                     ws.stack[top++] = n;
+                  }
+               }
+            }
+         }
+
+         if (size >= minEdgeSize) {
+            for (int i = 0; i < size; i++)
+               edges[ws.component[i]] = true;
+            count += size;
+         }
+      }
+      return count;
+   }
+
+
+   /***********************************************************************
+    * Helper methods
+    ***********************************************************************/
+
+   private static boolean nextToFlagged(boolean[] blocks, int blocksX, int blocksY, int by, int bx) {
+      for (int y = Math.max(0, by - 1); y <= Math.min(blocksY - 1, by + 1); y++)
+         for (int x = Math.max(0, bx - 1); x <= Math.min(blocksX - 1, bx + 1); x++)
+            if (blocks[y * blocksX + x])
+               return true;
+      return false;
+   }
+
+   private static int[] integerKernel(double[][] kernel) {
+      int[] flat = new int[kernel.length * kernel[0].length];
+      for (int k = 0; k < kernel.length; k++) {
+         for (int l = 0; l < kernel[0].length; l++) {
+            if (kernel[k][l] != Math.rint(kernel[k][l]))
+               throw new IllegalArgumentException("Gradient kernels must have integer weights");
+            flat[k * kernel[0].length + l] = (int) kernel[k][l];
+         }
+      }
+      return flat;
+   }
+
+
+   /***********************************************************************
+    * Accessors
+    ***********************************************************************/
+
+   /**
+    * @return threshold of the last frame detected on the calling thread (Sobel, Prewitt, Roberts Cross)
+    */
+   public int getThreshold() {
+      return workspaces.get().threshold;
+   }
+
+   /**
+    * @return low threshold of the last frame detected on the calling thread (Canny)
+    */
+   public int getLowThreshold() {
+      return workspaces.get().lowThreshold;
+   }
+
+   /**
+    * @return high threshold of the last frame detected on the calling thread (Canny)
+    */
+   public int getHighThreshold() {
+      return workspaces.get().highThreshold;
+   }
+
+   /**
+    * @return the detector and every parameter that affects its edges, e.g.
+    *         "SOBEL L2" or "CANNY 20-60 L1 min=5" ("auto" for calculated thresholds)
+    */
+   public String getParameters() {
+      String norm = L1norm ? "L1" : "L2";
+      if (!canny)
+         return operator + " " + norm;
+      String thresholds = calcThreshold ? "auto" : lowThreshold + "-" + highThreshold;
+      return "CANNY " + thresholds + " " + norm + " min=" + minEdgeSize;
+   }
+
+   public boolean isCanny() {
+      return canny;
+   }
+
+   public boolean isL1norm() {
+      return L1norm;
+   }
+
+   public int getMinEdgeSize() {
+      return minEdgeSize;
+   }
+
+
+   /*********************************************************************
+    * Unit testing
+    * @throws IOException
+    *********************************************************************/
+
+   /**
+    * Equivalence check: every detect() variant and RowStream must find the
+    * same edges as the detector classes. Run it after changing either side.
+    * <P> Exits with status 1 if any path differs.
+    * @param args image file (default TestData.jpg)
+    * @throws IOException
+    */
+   public static void main(String[] args) throws IOException {
+      String img = args.length > 0 ? args[0] : "TestData.jpg";
+      BufferedImage originalImage = ImageIO.read(new File(img));
+      int[][] pixels = Grayscale.imgToGrayPixels(originalImage);
+
+      boolean same = true;
+      for (boolean L1norm : new boolean[] {false, true}) {
+         same &= check(new Builder().operator(EdgeOperator.SOBEL).L1norm(L1norm).build(),
+                       new SobelEdgeDetector(pixels, L1norm).getEdges(), null, originalImage, pixels);
+         same &= check(new Builder().operator(EdgeOperator.PREWITT).L1norm(L1norm).build(),
+                       new PrewittEdgeDetector(pixels, L1norm).getEdges(), null, originalImage, pixels);
+         same &= check(new Builder().operator(EdgeOperator.ROBERTS_CROSS).L1norm(L1norm).build(),
+                       new RobertsCrossEdgeDetector(pixels, L1norm).getEdges(), null, originalImage, pixels);
+
+         // Builder.minEdgeSize() is not kept by CannyEdgeDetector; rethreshold() applies it
+         CannyEdgeDetector canny = new CannyEdgeDetector.Builder(pixels).thresholds(15, 35).L1norm(L1norm).build();
+         for (int minEdgeSize : new int[] {0, 10}) {
+            canny.rethreshold(15, 35, minEdgeSize);
+            same &= check(new Builder().canny(15, 35).minEdgeSize(minEdgeSize).L1norm(L1norm).build(),
+                          canny.getEdges(), null, originalImage, pixels);
+         }
+
+         // KMeans++ seeds at random, so compare at the thresholds each path calculated
+         same &= check(new Builder().canny().L1norm(L1norm).build(), null, canny, originalImage, pixels);
+      }
+
+      System.out.println(same ? "All paths agree." : "Paths differ.");
+      if (!same)
+         System.exit(1);
+   }
+
+   /**
+    * Runs engine through every input path and compares with expected or, for
+    * calculated thresholds, with canny rethresholded at the path's thresholds.
+    * @return true iff all paths found the expected edges
+    */
+   private static boolean check(EdgeDetectorEngine engine, boolean[][] expected, CannyEdgeDetector canny,
+                                BufferedImage image, int[][] pixels) {
+      int height = pixels.length;
+      int width = pixels[0].length;
+      int rows = engine.outputRows(height);
+      int columns = engine.outputColumns(width);
+      int[] gray = new int[height * width];
+      for (int i = 0; i < height; i++)
+         System.arraycopy(pixels[i], 0, gray, i * width, width);
+
+      boolean[] flat = new boolean[rows * columns];
+      boolean same = true;
+
+      engine.detect(gray, width, height, flat);
+      same &= report(engine, "flat", expected(engine, expected, canny), flat, columns);
+
+      boolean[][] edges = new boolean[rows][columns];
+      engine.detect(pixels, edges);
+      same &= report(engine, "int[][]", expected(engine, expected, canny), edges);
+
+      Arrays.fill(flat, false);
+      engine.detect(image, flat);
+      same &= report(engine, "BufferedImage", expected(engine, expected, canny), flat, columns);
+
+      if (engine.isCanny()) {
+         RowStream stream = engine.stream(width);
+         for (int[] row : pixels)
+            stream.push(row);
+         Arrays.fill(flat, false);
+         stream.finish(flat);
+         if (canny != null)
+            canny.rethreshold(stream.getLowThreshold(), stream.getHighThreshold(), engine.minEdgeSize);
+         same &= report(engine, "RowStream", (canny != null) ? canny.getEdges() : expected, flat, columns);
+
+         // with every block flagged nothing is restricted
+         int blockSize = 16;
+         boolean[] blocks = new boolean[((rows + blockSize - 1) / blockSize) * ((columns + blockSize - 1) / blockSize)];
+         Arrays.fill(blocks, true);
+         Arrays.fill(flat, false);
+         engine.detect(gray, width, height, blocks, blockSize, flat);
+         same &= report(engine, "blocks", expected(engine, expected, canny), flat, columns);
+      }
+      return same;
+   }
+
+   /**
+    * @return expected, or canny's edges at the thresholds of the last frame
+    *         engine detected on this thread
+    */
+   private static boolean[][] expected(EdgeDetectorEngine engine, boolean[][] expected, CannyEdgeDetector canny) {
+      if (canny == null)
+         return expected;
+      canny.rethreshold(engine.getLowThreshold(), engine.getHighThreshold(), engine.minEdgeSize);
+      return canny.getEdges();
+   }
+
+   private static boolean report(EdgeDetectorEngine engine, String path, boolean[][] expected, boolean[] flat,
+                                 int columns) {
+      boolean[][] edges = new boolean[flat.length / columns][];
+      for (int i = 0; i < edges.length; i++)
+         edges[i] = Arrays.copyOfRange(flat, i * columns, (i + 1) * columns);
+      return report(engine, path, expected, edges);
+   }
+
+   private static boolean report(EdgeDetectorEngine engine, String path, boolean[][] expected, boolean[][] edges) {
+      boolean same = Arrays.deepEquals(expected, edges);
+      System.out.println(engine.getParameters() + " " + path + ": " + (same ? "same" : "DIFFERENT"));
+      return same;
+   }
+}
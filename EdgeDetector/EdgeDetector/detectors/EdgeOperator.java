@@ -0,0 +1,37 @@
+/**************************************************************************
+ * @tags edge detection, image analysis, computer vision
+ *
+ * PURPOSE: Names the gradient operators of the GaussianEdgeDetector
+ * subclasses, so that code working on parts of an image (tiles, previews,
+ * pipelines) can apply the same kernels without building a detector.
+ **************************************************************************/
+
+package edgedetector.detectors;
+
+public enum EdgeOperator {
+   SOBEL(SobelEdgeDetector.X_kernel, SobelEdgeDetector.Y_kernel),
+   PREWITT(PrewittEdgeDetector.X_kernel, PrewittEdgeDetector.Y_kernel),
+   ROBERTS_CROSS(RobertsCrossEdgeDetector.X_kernel, RobertsCrossEdgeDetector.Y_kernel);
+
+   private final double[][] xKernel;
+   private final double[][] yKernel;
+
+   EdgeOperator(double[][] xKernel, double[][] yKernel) {
+      this.xKernel = xKernel;
+      this.yKernel = yKernel;
+   }
+
+   /**
+    * @return convolution kernel for the gradient in x direction
+    */
+   public double[][] getXkernel() {
+      return xKernel;
+   }
+
+   /**
+    * @return convolution kernel for the gradient in y direction
+    */
+   public double[][] getYkernel() {
+      return yKernel;
+   }
+}
@@ -0,0 +1,382 @@
+/**************************************************************************
+ * @tags edge detection, image analysis, computer vision
+ *
+ * PURPOSE: Runs several edge detectors on one image, computing every shared
+ * intermediate only once.
+ *
+ * OVERVIEW: A detector is a graph of named stages, each with declared input
+ * stages:
+ *
+ *    image -> grayscale -> [gaussian smoothing] -> x/y convolutions
+ *          -> gradient (magnitude, direction) -> threshold -> edges
+ *
+ * A stage's name is its operation and parameters followed by the names of
+ * its inputs, so two stages with the same name compute the same value. An
+ * EdgePipeline holds one image and caches the value of every stage it has
+ * computed, by name. Asking it for the Sobel edges and then the Canny edges
+ * converts the image to gray once; Canny with L1 and L2 norms share the
+ * smoothing and the convolutions; Sobel with two thresholds shares the
+ * gradient.
+ *
+ * Results are identical to the detector classes (Canny with minEdgeSize
+ * applied). get() is thread-safe: concurrent requests for the same stage
+ * wait for a single computation.
+ **************************************************************************/
+
+package edgedetector.detectors;
+
+import edgedetector.grayscale.Grayscale;
+import edgedetector.imagederivatives.ConvolutionKernel;
+import edgedetector.imagederivatives.ImageConvolution;
+import edgedetector.util.Hypotenuse;
+import edgedetector.util.NonMaximumSuppression;
+import edgedetector.util.Threshold;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+
+
+public class EdgePipeline {
+
+   /***********************************************************************
+    * Stages
+    **********************************************************************/
+
+   /**
+    * Named step of a detector with declared inputs. Computes its value from
+    * the values of its inputs, in the order they were declared.
+    * @param <T> type of the value
+    */
+   public static final class Stage<T> {
+      private final String name;
+      private final List<Stage<?>> inputs;
+      private final Function<Object[], T> compute;
+
+      private Stage(String operation, Function<Object[], T> compute, Stage<?>... inputs) {
+         StringBuilder name = new StringBuilder(operation);
+         if (inputs.length > 0) {
+            name.append('(');
+            for (int i = 0; i < inputs.length; i++)
+               name.append(i == 0 ? "" : ", ").append(inputs[i].name);
+            name.append(')');
+         }
+         this.name = name.toString();
+         this.inputs = Collections.unmodifiableList(Arrays.asList(inputs));
+         this.compute = compute;
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      public List<Stage<?>> getInputs() {
+         return inputs;
+      }
+
+      @Override
+      public String toString() {
+         return name;
+      }
+   }
+
+   /**
+    * Gradient magnitude and edge direction of every pixel.
+    */
+   public static final class Gradient {
+      private final int[][] mag;
+      private final NonMaximumSuppression.EdgeDirection[][] angle;
+
+      private Gradient(int[][] mag, NonMaximumSuppression.EdgeDirection[][] angle) {
+         this.mag = mag;
+         this.angle = angle;
+      }
+
+      public int[][] getMagnitudes() {
+         return mag;
+      }
+
+      public NonMaximumSuppression.EdgeDirection[][] getDirections() {
+         return angle;
+      }
+   }
+
+   // value set by the constructor
+   public static final Stage<BufferedImage> IMAGE = new Stage<>("image", in -> {
+      throw new IllegalStateException("Pipeline was created from gray pixels");
+   });
+
+   public static final Stage<int[][]> GRAYSCALE = new Stage<>("grayscale",
+         in -> Grayscale.imgToGrayPixels((BufferedImage) in[0]), IMAGE);
+
+   public static final Stage<int[][]> SMOOTHED = convolution("gaussian", ConvolutionKernel.GAUSSIAN_KERNEL, GRAYSCALE);
+
+   /**
+    * Convolution of input with kernel, as ImageConvolution.
+    * @param kernelName name of the kernel; stages with equal names must use equal kernels
+    */
+   public static Stage<int[][]> convolution(String kernelName, double[][] kernel, Stage<int[][]> input) {
+      return new Stage<>("convolution[" + kernelName + "]",
+            in -> new ImageConvolution((int[][]) in[0], kernel).getConvolvedImage(), input);
+   }
+
+   /**
+    * Gradient of input with operator's kernels.
+    */
+   public static Stage<Gradient> gradient(EdgeOperator operator, boolean L1norm, Stage<int[][]> input) {
+      Stage<int[][]> x = convolution(operator + "-x", operator.getXkernel(), input);
+      Stage<int[][]> y = convolution(operator + "-y", operator.getYkernel(), input);
+      return new Stage<>("gradient[" + (L1norm ? "L1" : "L2") + "]", in -> {
+         int[][] gx = (int[][]) in[0];
+         int[][] gy = (int[][]) in[1];
+         int rows = gx.length;
+         int columns = gx[0].length;
+         int[][] mag = new int[rows][columns];
+         NonMaximumSuppression.EdgeDirection[][] angle = new NonMaximumSuppression.EdgeDirection[rows][columns];
+         for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+               mag[i][j] = (int) (L1norm ? Hypotenuse.L1(gx[i][j], gy[i][j]) : Hypotenuse.L2(gx[i][j], gy[i][j]));
+               angle[i][j] = NonMaximumSuppression.EdgeDirection.getDirection(gx[i][j], gy[i][j]);
+            }
+         }
+         return new Gradient(mag, angle);
+      }, x, y);
+   }
+
+   /**
+    * Mean gradient magnitude, the threshold of GaussianEdgeDetector.
+    */
+   public static Stage<Integer> meanThreshold(Stage<Gradient> gradient) {
+      return new Stage<>("mean-threshold",
+            in -> Threshold.calcThresholdEdges(((Gradient) in[0]).mag), gradient);
+   }
+
+   /**
+    * GaussianEdgeDetector's edges: at or above the threshold and not suppressed.
+    */
+   public static Stage<boolean[][]> thresholdEdges(Stage<Gradient> gradient, Stage<Integer> threshold) {
+      return new Stage<>("threshold-nms", in -> {
+         Gradient g = (Gradient) in[0];
+         int t = (Integer) in[1];
+         int rows = g.mag.length;
+         int columns = g.mag[0].length;
+         boolean[][] edges = new boolean[rows][columns];
+         for (int i = 0; i < rows; i++)
+            for (int j = 0; j < columns; j++)
+               edges[i][j] = (g.mag[i][j] < t) ? false
+                       : NonMaximumSuppression.nonMaximumSuppression(g.mag, g.angle[i][j], i, j);
+         return edges;
+      }, gradient, threshold);
+   }
+
+   /**
+    * CannyEdgeDetector's in-place non-maximum suppression, on a copy of the magnitudes.
+    */
+   public static Stage<int[][]> cannySuppression(Stage<Gradient> gradient) {
+      return new Stage<>("canny-nms", in -> {
+         Gradient g = (Gradient) in[0];
+         int[][] mag = new int[g.mag.length][];
+         for (int i = 0; i < mag.length; i++)
+            mag[i] = g.mag[i].clone();
+         for (int i = 0; i < mag.length; i++)
+            for (int j = 0; j < mag[0].length; j++)
+               if (NonMaximumSuppression.nonMaximumSuppression(mag, g.angle[i][j], i, j))
+                  mag[i][j] = 0;
+         return mag;
+      }, gradient);
+   }
+
+   /**
+    * CannyEdgeDetector's automatic thresholds, {low, high}.
+    */
+   public static Stage<int[]> cannyThresholds(Stage<int[][]> suppressed) {
+      return new Stage<>("canny-thresholds", in -> {
+         int[][] mag = (int[][]) in[0];
+         int maxMag = 0;
+         for (int[] row : mag)
+            for (int m : row)
+               maxMag = Math.max(maxMag, m);
+         int[] histogram = new int[maxMag + 1];
+         for (int[] row : mag)
+            for (int m : row)
+               histogram[m]++;
+         return CannyEdgeDetector.calcThresholds(histogram, maxMag);
+      }, suppressed);
+   }
+
+   /**
+    * Fixed thresholds, {low, high}.
+    */
+   public static Stage<int[]> fixedThresholds(int lowThreshold, int highThreshold) {
+      if (lowThreshold > highThreshold || lowThreshold < 0 || highThreshold > 255)
+         throw new IllegalArgumentException("Invalid threshold values");
+      return new Stage<>("thresholds[" + lowThreshold + "," + highThreshold + "]",
+            in -> new int[] {lowThreshold, highThreshold});
+   }
+
+   /**
+    * Hysteresis and edge tracing: keeps groups of weak and strong pixels that
+    * contain a strong pixel and at least minEdgeSize pixels.
+    */
+   public static Stage<boolean[][]> hysteresis(Stage<int[][]> suppressed, Stage<int[]> thresholds, int minEdgeSize) {
+      return new Stage<>("hysteresis[" + minEdgeSize + "]", in -> {
+         int[][] mag = (int[][]) in[0];
+         int low = ((int[]) in[1])[0];
+         int high = ((int[]) in[1])[1];
+         int rows = mag.length;
+         int columns = mag[0].length;
+         byte[][] classes = new byte[rows][columns];
+         for (int i = 0; i < rows; i++)
+            for (int j = 0; j < columns; j++)
+               classes[i][j] = (mag[i][j] >= high) ? TiledEdgeDetector.STRONG
+                             : (mag[i][j] >= low) ? TiledEdgeDetector.WEAK : TiledEdgeDetector.NONE;
+         boolean[][] edges = new boolean[rows][columns];
+         TiledEdgeDetector.traceEdges(classes, minEdgeSize, edges);
+         return edges;
+      }, suppressed, thresholds);
+   }
+
+
+   /***********************************************************************
+    * Detectors
+    **********************************************************************/
+
+   /**
+    * Edges of SobelEdgeDetector, PrewittEdgeDetector or RobertsCrossEdgeDetector.
+    */
+   public static Stage<boolean[][]> gaussianDetector(EdgeOperator operator, boolean L1norm) {
+      Stage<Gradient> gradient = gradient(operator, L1norm, GRAYSCALE);
+      return thresholdEdges(gradient, meanThreshold(gradient));
+   }
+
+   /**
+    * Edges of CannyEdgeDetector with automatic thresholds.
+    */
+   public static Stage<boolean[][]> cannyDetector(boolean L1norm, int minEdgeSize) {
+      Stage<int[][]> suppressed = cannySuppression(gradient(EdgeOperator.SOBEL, L1norm, SMOOTHED));
+      return hysteresis(suppressed, cannyThresholds(suppressed), minEdgeSize);
+   }
+
+   /**
+    * Edges of CannyEdgeDetector with the given thresholds.
+    */
+   public static Stage<boolean[][]> cannyDetector(int lowThreshold, int highThreshold, boolean L1norm, int minEdgeSize) {
+      Stage<int[][]> suppressed = cannySuppression(gradient(EdgeOperator.SOBEL, L1norm, SMOOTHED));
+      return hysteresis(suppressed, fixedThresholds(lowThreshold, highThreshold), minEdgeSize);
+   }
+
+
+   /***********************************************************************
+    * Pipeline
+    **********************************************************************/
+
+   // computed (or running) stages by name
+   private final Map<String, FutureTask<Object>> values = new ConcurrentHashMap<>();
+
+   // name of the stage given to the constructor; it cannot be recomputed
+   private String input;
+
+   // nanoseconds spent in each computed stage, excluding its inputs
+   private final Map<String, Long> timings = Collections.synchronizedMap(new LinkedHashMap<>());
+
+   public EdgePipeline(BufferedImage image) {
+      seed(IMAGE, image);
+   }
+
+   /**
+    * Pipeline over gray pixels that were already converted.
+    */
+   public EdgePipeline(int[][] gray) {
+      seed(GRAYSCALE, gray);
+   }
+
+   private void seed(Stage<?> stage, Object value) {
+      FutureTask<Object> task = new FutureTask<>(() -> value);
+      task.run();
+      values.put(stage.name, task);
+      input = stage.name;
+   }
+
+   /**
+    * @return value of stage, computing it and any missing inputs first
+    */
+   @SuppressWarnings("unchecked")
+   public <T> T get(Stage<T> stage) {
+      FutureTask<Object> task = values.get(stage.name);
+      if (task == null) {
+         FutureTask<Object> created = new FutureTask<>(() -> compute(stage));
+         task = values.putIfAbsent(stage.name, created);
+         if (task == null) {
+            task = created;
+            task.run();
+         }
+      }
+      try {
+         return (T) task.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Interrupted while waiting for " + stage.name, e);
+      } catch (ExecutionException e) {
+         values.remove(stage.name, task); // a later get() tries again
+         if (e.getCause() instanceof RuntimeException)
+            throw (RuntimeException) e.getCause();
+         throw new IllegalStateException("Stage failed: " + stage.name, e.getCause());
+      }
+   }
+
+   private Object compute(Stage<?> stage) {
+      Object[] in = new Object[stage.inputs.size()];
+      for (int i = 0; i < in.length; i++)
+         in[i] = get(stage.inputs.get(i));
+
+      long start = System.nanoTime();
+      Object value = stage.compute.apply(in);
+      timings.put(stage.name, System.nanoTime() - start);
+      return value;
+   }
+
+   /**
+    * Drops the cached values of stages, e.g. intermediates no later detector
+    * needs; they are recomputed if asked for again.
+    * @throws IllegalArgumentException for the stage given to the constructor
+    */
+   public void release(Stage<?>... stages) {
+      for (Stage<?> stage : stages) {
+         if (stage.name.equals(input))
+            throw new IllegalArgumentException("Cannot release the pipeline's input");
+         values.remove(stage.name);
+      }
+   }
+
+   /**
+    * Drops every cached value except the pipeline's input.
+    */
+   public void clear() {
+      values.keySet().removeIf(name -> !name.equals(input));
+   }
+
+   /**
+    * @return whether stage has been computed (or given to the constructor)
+    */
+   public boolean isComputed(Stage<?> stage) {
+      FutureTask<Object> task = values.get(stage.name);
+      return task != null && task.isDone();
+   }
+
+   /**
+    * @return nanoseconds spent computing each stage, in order of completion.
+    * Every stage appears at most once, however many detectors used it.
+    */
+   public Map<String, Long> getTimings() {
+      synchronized (timings) {
+         return new LinkedHashMap<>(timings);
+      }
+   }
+}
@@ -9,11 +9,14 @@
 
 package edgedetector.detectors;
 
+import edgedetector.grayscale.TiledImageSource;
 import edgedetector.imagederivatives.ImageConvolution;
 import edgedetector.util.NonMaximumSuppression;
 import edgedetector.util.Hypotenuse;
 import edgedetector.util.Threshold;
 
+import java.io.IOException;
+
 public abstract class GaussianEdgeDetector {
 
    /************************************************************************
@@ -27,6 +30,10 @@ public abstract class GaussianEdgeDetector {
    
    // true --> use L1 norm. false --> use L2. L1 is less precise, but faster.
    protected boolean L1norm;
+
+   // subsampling step of a preview: edges[i][j] is at pixel ((j + offset) * scale, (i + offset) * scale)
+   // of the full image, see getOffset()
+   protected int scale = 1;
    
    
    /************************************************************************
@@ -83,6 +90,49 @@ public abstract class GaussianEdgeDetector {
   
 
 
+   /**
+    * Fast preview: decodes the image subsampled so that neither side is longer
+    * than previewSize, and finds edges on the smaller image with
+    * EdgeDetectorEngine (same edges as findEdges(), without its per-pixel
+    * arrays).
+    * <P> Most of the time goes to decoding: ImageIO's JPEG reader decodes
+    * every pixel even when subsampling, so a JPEG preview takes at least
+    * that long whatever previewSize is (about 180-330 ms for 36 MP). With
+    * previewSize 1024 a 36 MP JPEG previews in about 210-240 ms, of which
+    * detection is about 30 ms.
+    * @param filePath path to image
+    * @param previewSize longest side of the decoded image, in pixels
+    * @throws IOException if the image cannot be decoded
+    */
+   protected void findEdgesPreview(String filePath, int previewSize, boolean L1norm) throws IOException {
+      int[][] image;
+      try (TiledImageSource source = new TiledImageSource(filePath)) {
+         scale = source.subsamplingFor(previewSize);
+         image = source.readGraySubsampled(scale);
+      }
+
+      EdgeOperator operator = getOperator();
+      if (operator == null) {
+         findEdges(image, L1norm);
+         return;
+      }
+      EdgeDetectorEngine engine = new EdgeDetectorEngine.Builder().operator(operator).L1norm(L1norm).build();
+      edges = new boolean[engine.outputRows(image.length)][engine.outputColumns(image[0].length)];
+      engine.detect(image, edges);
+      threshold = engine.getThreshold();
+   }
+
+   /**
+    * @return the EdgeOperator with this detector's kernels, null if there is none
+    */
+   private EdgeOperator getOperator() {
+      for (EdgeOperator operator : EdgeOperator.values())
+         if (operator.getXkernel() == getXkernel() && operator.getYkernel() == getYkernel())
+            return operator;
+      return null;
+   }
+
+
    /*********************************************************************
     * Accessors
     *********************************************************************/
@@ -101,6 +151,30 @@ public abstract class GaussianEdgeDetector {
       return threshold;
    }
    
+   /**
+    * @return subsampling step of a preview (1 at full resolution)
+    */
+   public int getScale() {
+      return scale;
+   }
+
+   /**
+    * @return # of pixels the convolution trims from the top and left of the
+    * (preview) image: edges[i][j] is at pixel (i + offset, j + offset) of it
+    */
+   public int getOffset() {
+      return (getXkernel().length - 1) / 2;
+   }
+
+   /**
+    * @return {x, y} of the full-image pixel under edges[i][j], taking the
+    * kernel border and the preview subsampling into account
+    */
+   public int[] toImageCoordinates(int i, int j) {
+      int offset = getOffset();
+      return new int[] {(j + offset) * scale, (i + offset) * scale};
+   }
+
    /**
     * @return whether used L1 or L2 distance norm
     */
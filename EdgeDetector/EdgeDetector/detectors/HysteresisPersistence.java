@@ -0,0 +1,285 @@
+/**************************************************************************
+ * @tags edge detection, image analysis, computer vision
+ *
+ * PURPOSE: Canny hysteresis for any pair of thresholds without tracing.
+ *
+ * OVERVIEW: Hysteresis with thresholds (low, high) keeps every 8-connected
+ * group of pixels with magnitude >= low that contains a pixel with
+ * magnitude >= high. As low decreases these groups only grow and merge, so
+ * all of them, for every low, form one tree (a merge tree):
+ *
+ *    1. Bucket the pixels by magnitude (counting sort, magnitudes are small).
+ *    2. Add them from the largest magnitude down, joining each to its
+ *       already added neighbors with union-find.
+ *    3. After each magnitude v, every group that gained pixels gets a new
+ *       tree node (born at v, with its size and largest magnitude) whose
+ *       children are the nodes of the groups it absorbed.
+ *
+ * The group of pixel p at level low is the highest ancestor of p's first
+ * node that was born at or above low. A query resolves that ancestor once
+ * per node (parents before children) and then costs one lookup and one
+ * comparison per pixel. For a fixed low, reachAt(low) gives each pixel the
+ * largest high it survives, so sweeping high is a single comparison.
+ **************************************************************************/
+
+package edgedetector.detectors;
+
+import java.util.Arrays;
+
+
+public class HysteresisPersistence {
+
+   /***********************************************************************
+    * Fields
+    **********************************************************************/
+
+   private final int rows;
+   private final int columns;
+   private final int[] mag;    // flat, row-major magnitudes
+
+   // leaf[p] = node of p's group at level mag[p]
+   private final int[] leaf;
+
+   // merge tree; children are always created before their parent
+   private final int nodeCount;
+   private final int[] nodeParent; // -1 for roots
+   private final int[] nodeBirth;  // magnitude at which the node was created
+   private final int[] nodeMax;    // largest magnitude in the group
+   private final int[] nodeSize;   // # of pixels in the group
+
+
+   /***********************************************************************
+    * Constructor
+    **********************************************************************/
+
+   /**
+    * Builds the merge tree of mag in one pass.
+    * @param mag non-negative gradient magnitudes (after non-maximum suppression)
+    */
+   public HysteresisPersistence(int[][] mag) {
+      rows = mag.length;
+      columns = (rows == 0) ? 0 : mag[0].length;
+      int n = rows * columns;
+      this.mag = new int[n];
+      int maxMag = 0;
+      for (int r = 0; r < rows; r++) {
+         for (int c = 0; c < columns; c++) {
+            int m = mag[r][c];
+            if (m < 0)
+               throw new IllegalArgumentException("Negative magnitude");
+            this.mag[r * columns + c] = m;
+            maxMag = Math.max(maxMag, m);
+         }
+      }
+
+      //================== STEP 1: SORT BY MAGNITUDE ====================//
+
+      int[] start = new int[maxMag + 2];
+      for (int p = 0; p < n; p++)
+         start[this.mag[p] + 1]++;
+      for (int v = 0; v <= maxMag; v++)
+         start[v + 1] += start[v];
+      int[] order = new int[n];
+      int[] fill = Arrays.copyOf(start, maxMag + 1);
+      for (int p = 0; p < n; p++)
+         order[fill[this.mag[p]]++] = p;
+
+      //============ STEP 2, 3: UNION-FIND AND MERGE TREE ===============//
+
+      int[] parent = new int[n];
+      int[] size = new int[n];
+      int[] max = new int[n];
+      int[] node = new int[n];     // current node of a root, -1 if none yet
+      int[] stamp = new int[n];    // level + 1 at which a root last got a node
+      boolean[] added = new boolean[n];
+
+      int[] treeParent = new int[Math.max(1, n)];
+      int[] birth = new int[Math.max(1, n)];
+      int[] treeMax = new int[Math.max(1, n)];
+      int[] treeSize = new int[Math.max(1, n)];
+      int nodes = 0;
+
+      // nodes of groups absorbed at the current level, with one pixel of each
+      int[] orphanNode = new int[16];
+      int[] orphanPixel = new int[16];
+      leaf = new int[n];
+
+      for (int v = maxMag; v >= 0; v--) {
+         int orphans = 0;
+
+         for (int i = start[v]; i < start[v + 1]; i++) {
+            int p = order[i];
+            parent[p] = p;
+            size[p] = 1;
+            max[p] = v;
+            node[p] = -1;
+            added[p] = true;
+
+            int pr = p / columns;
+            int pc = p - pr * columns;
+            for (int dr = -1; dr <= 1; dr++) {
+               for (int dc = -1; dc <= 1; dc++) {
+                  int nr = pr + dr;
+                  int nc = pc + dc;
+                  if (nr < 0 || nr >= rows || nc < 0 || nc >= columns || (dr == 0 && dc == 0))
+                     continue;
+                  int q = nr * columns + nc;
+                  if (!added[q])
+                     continue;
+
+                  int a = find(parent, p);
+                  int b = find(parent, q);
+                  if (a == b)
+                     continue;
+                  if (size[a] > size[b]) {
+                     int t = a;
+                     a = b;
+                     b = t;
+                  }
+                  // a joins b; a's node becomes a child of b's next node
+                  if (node[a] >= 0) {
+                     if (orphans == orphanNode.length) {
+                        orphanNode = Arrays.copyOf(orphanNode, 2 * orphans);
+                        orphanPixel = Arrays.copyOf(orphanPixel, 2 * orphans);
+                     }
+                     orphanNode[orphans] = node[a];
+                     orphanPixel[orphans++] = a;
+                  }
+                  parent[a] = b;
+                  size[b] += size[a];
+                  max[b] = Math.max(max[b], max[a]);
+               }
+            }
+         }
+
+         // one new node per group that gained pixels at this level
+         for (int i = start[v]; i < start[v + 1]; i++) {
+            int r = find(parent, order[i]);
+            if (stamp[r] == v + 1)
+               continue;
+            stamp[r] = v + 1;
+            treeParent[nodes] = -1;
+            birth[nodes] = v;
+            treeMax[nodes] = max[r];
+            treeSize[nodes] = size[r];
+            if (node[r] >= 0)
+               treeParent[node[r]] = nodes;
+            node[r] = nodes++;
+         }
+         for (int i = 0; i < orphans; i++)
+            treeParent[orphanNode[i]] = node[find(parent, orphanPixel[i])];
+         for (int i = start[v]; i < start[v + 1]; i++)
+            leaf[order[i]] = node[find(parent, order[i])];
+      }
+
+      nodeCount = nodes;
+      nodeParent = Arrays.copyOf(treeParent, nodes);
+      nodeBirth = Arrays.copyOf(birth, nodes);
+      nodeMax = Arrays.copyOf(treeMax, nodes);
+      nodeSize = Arrays.copyOf(treeSize, nodes);
+   }
+
+   private static int find(int[] parent, int p) {
+      int root = p;
+      while (parent[root] != root)
+         root = parent[root];
+      while (parent[p] != root) {
+         int next = parent[p];
+         parent[p] = root;
+         p = next;
+      }
+      return root;
+   }
+
+
+   /***********************************************************************
+    * Queries
+    ***********************************************************************/
+
+   /**
+    * @return edges of Canny hysteresis with these thresholds
+    */
+   public boolean[][] edges(int lowThreshold, int highThreshold) {
+      return edges(lowThreshold, highThreshold, 0);
+   }
+
+   /**
+    * @return edges of Canny hysteresis with these thresholds, keeping only
+    *         groups of at least minEdgeSize pixels
+    */
+   public boolean[][] edges(int lowThreshold, int highThreshold, int minEdgeSize) {
+      boolean[][] edges = new boolean[rows][columns];
+      edges(lowThreshold, highThreshold, minEdgeSize, edges);
+      return edges;
+   }
+
+   /**
+    * Fills edges (rows x columns) with the edges of Canny hysteresis with
+    * these thresholds and minEdgeSize: one comparison and lookup per pixel.
+    * @return # of edge pixels
+    */
+   public int edges(int lowThreshold, int highThreshold, int minEdgeSize, boolean[][] edges) {
+      if (lowThreshold > highThreshold || lowThreshold < 0)
+         throw new IllegalArgumentException("Invalid threshold values");
+
+      // kept[n]: the group that node n belongs to at level low is an edge
+      boolean[] kept = new boolean[nodeCount];
+      for (int k = nodeCount - 1; k >= 0; k--) {
+         int up = nodeParent[k];
+         kept[k] = (up >= 0 && nodeBirth[up] >= lowThreshold)
+                   ? kept[up]
+                   : nodeMax[k] >= highThreshold && nodeSize[k] >= minEdgeSize;
+      }
+
+      int count = 0;
+      for (int r = 0, p = 0; r < rows; r++) {
+         boolean[] row = edges[r];
+         for (int c = 0; c < columns; c++, p++) {
+            row[c] = mag[p] >= lowThreshold && kept[leaf[p]];
+            if (row[c])
+               count++;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Per-pixel map for a fixed low threshold: pixel (r, c) is an edge for
+    * (lowThreshold, high) iff reach[r][c] >= high.
+    * @return largest magnitude in each pixel's group at level lowThreshold, or
+    *         -1 for pixels below lowThreshold
+    */
+   public int[][] reachAt(int lowThreshold) {
+      int[] reach = new int[nodeCount];
+      for (int k = nodeCount - 1; k >= 0; k--) {
+         int up = nodeParent[k];
+         reach[k] = (up >= 0 && nodeBirth[up] >= lowThreshold) ? reach[up] : nodeMax[k];
+      }
+
+      int[][] map = new int[rows][columns];
+      for (int r = 0, p = 0; r < rows; r++)
+         for (int c = 0; c < columns; c++, p++)
+            map[r][c] = mag[p] >= lowThreshold ? reach[leaf[p]] : -1;
+      return map;
+   }
+
+
+   /***********************************************************************
+    * Accessors
+    ***********************************************************************/
+
+   public int getRows() {
+      return rows;
+   }
+
+   public int getColumns() {
+      return columns;
+   }
+
+   /**
+    * @return # of nodes of the merge tree
+    */
+   public int getNodeCount() {
+      return nodeCount;
+   }
+}
@@ -1,25 +1,63 @@
 package edgedetector.detectors;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
 
 public class KMeans {
 
     private int k; // number of clusters
     private int iterations; // max iterations
-    private double[][] data; // data points to be clustered
+    private double[][] data; // data points to be clustered (unique points if deduplicated)
+    private double[] weights; // weight of each data point; null if all points weigh 1
+    private int[] uniqueIndex; // row of the input -> row of data; null if not deduplicated
     private double[][] centroids; // centroids of clusters
     private int[] labels; // labels for each data point
+    private int[] inputLabels; // labels for each row of the input, built lazily after deduplication
+    private double inertia = Double.NaN; // computed lazily
     private boolean pp; // k-means++ initialization
     private boolean useEpsilon;
     private double epsilon;
+    private boolean accelerated; // triangle-inequality (Hamerly) accelerated assignment
+    private double[] upperBounds; // upper bound on distance from each point to its assigned centroid
+    private double[] lowerBounds; // lower bound on distance from each point to its second closest centroid
+    private long distanceCalculations; // point-to-centroid distances computed during assignment
+    private boolean parallelInit; // k-means|| initialization
+    private double oversampling; // candidates sampled per k-means|| round, as a multiple of k
+    private int initRounds; // number of k-means|| sampling rounds
+    private Random rand; // shared by all random choices of one run
+
+    // points handled by one task in the parallel k-means|| passes
+    private static final int CHUNK_SIZE = 4096;
 
     private KMeans(Builder builder) {
         this.k = builder.k;
         this.iterations = builder.iterations;
         this.data = builder.data;
+        this.weights = builder.weights;
         this.pp = builder.pp;
         this.useEpsilon = builder.useEpsilon;
         this.epsilon = builder.epsilon;
+        this.accelerated = builder.accelerated;
+        this.parallelInit = builder.parallelInit;
+        this.oversampling = builder.oversampling;
+        this.initRounds = builder.initRounds;
+        this.rand = builder.seeded ? new Random(builder.seed) : new Random();
+
+        Deduplicated unique = builder.unique;
+        if (unique == null && builder.deduplicate) {
+            unique = new Deduplicated(data, weights);
+        }
+        if (unique != null) {
+            this.data = unique.points;
+            this.weights = unique.weights;
+            this.uniqueIndex = unique.index;
+        }
 
         runKMeans();
     }
@@ -28,16 +66,57 @@ public class KMeans {
     public static class Builder {
         private int k;
         private double[][] data;
+        private double[] weights;
+        private boolean deduplicate = false;
+        private Deduplicated unique; // deduplicated input shared by several runs
         private int iterations = 100; // default max iterations
         private boolean pp = false;
         private boolean useEpsilon = false;
         private double epsilon = 0.0001;
+        private boolean accelerated = false;
+        private boolean parallelInit = false;
+        private double oversampling = 2.0;
+        private int initRounds = 5;
+        private boolean seeded = false;
+        private long seed;
 
         public Builder(int k, double[][] data) {
             this.k = k;
             this.data = data;
         }
 
+        /**
+         * Cluster input that has already been deduplicated (see KMeansSweep).
+         */
+        Builder(int k, Deduplicated unique) {
+            this.k = k;
+            this.data = unique.points;
+            this.unique = unique;
+        }
+
+        /**
+         * Give each data point a weight, as if it appeared that many times.
+         */
+        public Builder weights(double[] weights) {
+            if (weights.length != data.length)
+                throw new IllegalArgumentException("Need exactly one weight per data point");
+            for (double weight : weights)
+                if (!(weight >= 0))
+                    throw new IllegalArgumentException("Weights must be non-negative");
+            this.weights = weights;
+            return this;
+        }
+
+        /**
+         * Collapse identical data points into one weighted point before clustering,
+         * so that cost scales with the number of distinct points.
+         * getLabels() still returns one label per input row.
+         */
+        public Builder deduplicate(boolean deduplicate) {
+            this.deduplicate = deduplicate;
+            return this;
+        }
+
         public Builder iterations(int iterations) {
             this.iterations = iterations;
             return this;
@@ -58,6 +137,53 @@ public class KMeans {
             return this;
         }
 
+        /**
+         * Skip point-to-centroid distances that the triangle inequality proves
+         * cannot change a label. Gives the same labels and centroids as plain Lloyd.
+         */
+        public Builder accelerated(boolean accelerated) {
+            this.accelerated = accelerated;
+            return this;
+        }
+
+        /**
+         * Use k-means|| (scalable k-means++) to pick the initial centroids.
+         * Takes precedence over pp(true).
+         */
+        public Builder parallelInit(boolean parallelInit) {
+            this.parallelInit = parallelInit;
+            return this;
+        }
+
+        /**
+         * Expected number of k-means|| candidates sampled per round, as a multiple of k.
+         */
+        public Builder oversampling(double oversampling) {
+            if (oversampling <= 0)
+                throw new IllegalArgumentException("Oversampling factor must be positive");
+            this.oversampling = oversampling;
+            return this;
+        }
+
+        /**
+         * Number of k-means|| sampling rounds (passes over the data).
+         */
+        public Builder initRounds(int initRounds) {
+            if (initRounds < 1)
+                throw new IllegalArgumentException("Need at least one initialization round");
+            this.initRounds = initRounds;
+            return this;
+        }
+
+        /**
+         * Fix the random seed so that runs are reproducible.
+         */
+        public Builder seed(long seed) {
+            this.seeded = true;
+            this.seed = seed;
+            return this;
+        }
+
         public KMeans build() {
             return new KMeans(this);
         }
@@ -72,7 +198,13 @@ public class KMeans {
 
         for (int iter = 0; iter < iterations && !converged; iter++) {
             // Step 2: Assign labels based on nearest centroid
-            assignLabels();
+            if (!accelerated) {
+                assignLabels();
+            } else if (iter == 0) {
+                initializeBounds();
+            } else {
+                assignLabelsAccelerated();
+            }
 
             // Step 3: Update centroids
             double[][] newCentroids = calculateNewCentroids();
@@ -80,39 +212,54 @@ public class KMeans {
             // Step 4: Check convergence
             converged = checkConvergence(newCentroids);
 
+            if (accelerated) {
+                updateBounds(newCentroids);
+            }
+
             centroids = newCentroids;
         }
     }
 
     private void initializeCentroids() {
         centroids = new double[k][data[0].length];
-        Random rand = new Random();
 
-        if (pp) {
+        if (parallelInit) {
+            initializeCentroidsParallel();
+        } else if (pp) {
             // K-means++ initialization
-            centroids[0] = data[rand.nextInt(data.length)];
+            centroids[0] = data[randomIndex()];
             for (int i = 1; i < k; i++) {
                 double[] distances = new double[data.length];
                 for (int j = 0; j < data.length; j++) {
-                    distances[j] = minDistanceToCentroid(data[j], centroids, i);
+                    distances[j] = weight(j) * minDistanceToCentroid(data[j], centroids, i);
                 }
                 centroids[i] = data[selectRandomWeightedIndex(distances)];
             }
         } else {
             // Random initialization
             for (int i = 0; i < k; i++) {
-                centroids[i] = data[rand.nextInt(data.length)];
+                centroids[i] = data[randomIndex()];
             }
         }
     }
 
+    /**
+     * @return index of a data point, chosen with probability proportional to its weight
+     */
+    private int randomIndex() {
+        return (weights == null) ? rand.nextInt(data.length) : selectRandomWeightedIndex(weights);
+    }
+
+    private double weight(int i) {
+        return (weights == null) ? 1.0 : weights[i];
+    }
+
     private int selectRandomWeightedIndex(double[] distances) {
         double sum = 0;
         for (double distance : distances) {
             sum += distance;
         }
 
-        Random rand = new Random();
         double r = rand.nextDouble() * sum;
         double cumulativeSum = 0;
 
@@ -126,6 +273,162 @@ public class KMeans {
         return distances.length - 1;
     }
 
+    /*
+     * k-means|| (Bahmani et al., "Scalable K-Means++"). Instead of k sequential passes,
+     * a few rounds each sample about oversampling * k candidates independently with
+     * probability proportional to their squared distance to the candidates so far.
+     * Every point keeps its distance to, and index of, its nearest candidate, and each
+     * round only compares points against the candidates added in that round. The
+     * candidates, weighted by how many points they attract, are then reclustered
+     * down to k centroids with weighted k-means++ and Lloyd iterations.
+     */
+
+    private void initializeCentroidsParallel() {
+        int n = data.length;
+        List<double[]> candidates = new ArrayList<>();
+        double[] minDist = new double[n];
+        int[] nearest = new int[n];
+        Arrays.fill(minDist, Double.MAX_VALUE);
+
+        candidates.add(data[randomIndex()]);
+        double cost = updateNearestCandidates(candidates, 0, minDist, nearest);
+
+        double expected = oversampling * k;
+        for (int round = 0; round < initRounds && cost > 0; round++) {
+            final double scale = expected / cost;
+            final long roundSeed = rand.nextLong();
+
+            // sample independently in parallel; chunk order keeps the result deterministic
+            int[][] sampled = IntStream.range(0, numChunks(n)).parallel().mapToObj(chunk -> {
+                SplittableRandom chunkRand = new SplittableRandom(roundSeed + chunk);
+                int from = chunk * CHUNK_SIZE;
+                int to = Math.min(n, from + CHUNK_SIZE);
+                int[] picked = new int[to - from];
+                int count = 0;
+                for (int i = from; i < to; i++) {
+                    if (chunkRand.nextDouble() < scale * weight(i) * minDist[i]) {
+                        picked[count++] = i;
+                    }
+                }
+                return Arrays.copyOf(picked, count);
+            }).toArray(int[][]::new);
+
+            int firstNew = candidates.size();
+            for (int[] picked : sampled) {
+                for (int i : picked) {
+                    candidates.add(data[i]);
+                }
+            }
+            cost = updateNearestCandidates(candidates, firstNew, minDist, nearest);
+        }
+
+        // rounds may undersample on tiny or highly duplicated data
+        while (candidates.size() < k && cost > 0) {
+            int firstNew = candidates.size();
+            double[] scores = new double[n];
+            for (int i = 0; i < n; i++) {
+                scores[i] = weight(i) * minDist[i];
+            }
+            candidates.add(data[selectRandomWeightedIndex(scores)]);
+            cost = updateNearestCandidates(candidates, firstNew, minDist, nearest);
+        }
+
+        double[] candidateWeights = new double[candidates.size()];
+        for (int i = 0; i < n; i++) {
+            candidateWeights[nearest[i]] += weight(i);
+        }
+
+        reclusterCandidates(candidates.toArray(new double[0][]), candidateWeights);
+    }
+
+    private static int numChunks(int n) {
+        return (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    /**
+     * Compares every point with candidates[firstNew..] only and keeps its
+     * squared distance to, and index of, its nearest candidate.
+     * @return total weighted squared distance of all points to their nearest candidate
+     */
+    private double updateNearestCandidates(List<double[]> candidates, int firstNew, double[] minDist, int[] nearest) {
+        int n = data.length;
+        int size = candidates.size();
+        return IntStream.range(0, numChunks(n)).parallel().mapToDouble(chunk -> {
+            int from = chunk * CHUNK_SIZE;
+            int to = Math.min(n, from + CHUNK_SIZE);
+            double sum = 0;
+            for (int i = from; i < to; i++) {
+                for (int c = firstNew; c < size; c++) {
+                    double dist = squaredDistance(data[i], candidates.get(c));
+                    if (dist < minDist[i]) {
+                        minDist[i] = dist;
+                        nearest[i] = c;
+                    }
+                }
+                sum += weight(i) * minDist[i];
+            }
+            return sum;
+        }).sum();
+    }
+
+    /**
+     * Reduces the weighted k-means|| candidates to k centroids.
+     */
+    private void reclusterCandidates(double[][] candidates, double[] weights) {
+        int m = candidates.length;
+        int dims = data[0].length;
+
+        // weighted k-means++ seeding over the candidates
+        double[] minDist = new double[m];
+        Arrays.fill(minDist, Double.MAX_VALUE);
+        double[] scores = new double[m];
+        centroids[0] = candidates[selectRandomWeightedIndex(weights)];
+        for (int i = 0; i < k; i++) {
+            if (i > 0) {
+                centroids[i] = candidates[selectRandomWeightedIndex(scores)];
+            }
+            for (int c = 0; c < m; c++) {
+                minDist[c] = Math.min(minDist[c], squaredDistance(candidates[c], centroids[i]));
+                scores[c] = weights[c] * minDist[c];
+            }
+        }
+
+        // weighted Lloyd iterations over the candidates
+        int[] assigned = new int[m];
+        for (int iter = 0; iter < iterations; iter++) {
+            for (int c = 0; c < m; c++) {
+                assigned[c] = findNearestCentroid(candidates[c]);
+            }
+
+            double[][] newCentroids = new double[k][dims];
+            double[] totals = new double[k];
+            for (int c = 0; c < m; c++) {
+                for (int j = 0; j < dims; j++) {
+                    newCentroids[assigned[c]][j] += weights[c] * candidates[c][j];
+                }
+                totals[assigned[c]] += weights[c];
+            }
+
+            boolean changed = false;
+            for (int i = 0; i < k; i++) {
+                if (totals[i] > 0) {
+                    for (int j = 0; j < dims; j++) {
+                        newCentroids[i][j] /= totals[i];
+                    }
+                } else {
+                    newCentroids[i] = centroids[i]; // keep the seed of an empty cluster
+                }
+                changed |= !centroidsEqual(centroids[i], newCentroids[i]);
+            }
+
+            centroids = newCentroids;
+            if (!changed) {
+                break;
+            }
+        }
+        distanceCalculations = 0; // only count distances computed on the data itself
+    }
+
     private double minDistanceToCentroid(double[] point, double[][] centroids, int numCentroids) {
         double minDist = Double.MAX_VALUE;
         for (int i = 0; i < numCentroids; i++) {
@@ -144,6 +447,7 @@ public class KMeans {
     }
 
     private int findNearestCentroid(double[] point) {
+        distanceCalculations += centroids.length;
         int nearest = 0;
         double minDist = euclideanDistance(point, centroids[0]);
 
@@ -158,16 +462,125 @@ public class KMeans {
         return nearest;
     }
 
+    /*
+     * Hamerly's variant of Lloyd's algorithm. Every point keeps an upper bound on the
+     * distance to its own centroid and a lower bound on the distance to every other
+     * centroid. A point whose upper bound is below both its lower bound and half the
+     * distance from its centroid to the nearest other centroid cannot change label,
+     * so its distances are not recomputed. All comparisons are strict, so whenever a
+     * tie is possible the point is rescanned and gets the same label as assignLabels().
+     */
+
+    private void initializeBounds() {
+        upperBounds = new double[data.length];
+        lowerBounds = new double[data.length];
+        for (int i = 0; i < data.length; i++) {
+            rescan(i);
+        }
+    }
+
+    private void assignLabelsAccelerated() {
+        double[] halfSeparation = halfCentroidSeparations();
+
+        for (int i = 0; i < data.length; i++) {
+            int label = labels[i];
+            double bound = Math.max(halfSeparation[label], lowerBounds[i]);
+            if (upperBounds[i] < bound) {
+                continue;
+            }
+
+            // tighten the upper bound before falling back to a full scan
+            upperBounds[i] = euclideanDistance(data[i], centroids[label]);
+            distanceCalculations++;
+            if (upperBounds[i] < bound) {
+                continue;
+            }
+
+            rescan(i);
+        }
+    }
+
+    /**
+     * Finds nearest and second nearest centroid of data[i] and resets its bounds.
+     * Ties go to the lowest index, like findNearestCentroid().
+     */
+    private void rescan(int i) {
+        distanceCalculations += centroids.length;
+        int nearest = 0;
+        double minDist = euclideanDistance(data[i], centroids[0]);
+        double secondDist = Double.MAX_VALUE;
+
+        for (int j = 1; j < centroids.length; j++) {
+            double dist = euclideanDistance(data[i], centroids[j]);
+            if (dist < minDist) {
+                secondDist = minDist;
+                minDist = dist;
+                nearest = j;
+            } else if (dist < secondDist) {
+                secondDist = dist;
+            }
+        }
+
+        labels[i] = nearest;
+        upperBounds[i] = minDist;
+        lowerBounds[i] = secondDist;
+    }
+
+    /**
+     * @return for each centroid, half the distance to its closest other centroid
+     */
+    private double[] halfCentroidSeparations() {
+        double[] half = new double[centroids.length];
+        Arrays.fill(half, Double.MAX_VALUE);
+
+        for (int a = 0; a < centroids.length; a++) {
+            for (int b = a + 1; b < centroids.length; b++) {
+                double dist = 0.5 * euclideanDistance(centroids[a], centroids[b]);
+                if (dist < half[a]) half[a] = dist;
+                if (dist < half[b]) half[b] = dist;
+            }
+        }
+        return half;
+    }
+
+    /**
+     * Loosens the bounds by how far each centroid moved.
+     */
+    private void updateBounds(double[][] newCentroids) {
+        double[] drift = new double[centroids.length];
+        int largest = 0;
+        for (int j = 0; j < centroids.length; j++) {
+            drift[j] = euclideanDistance(centroids[j], newCentroids[j]);
+            if (drift[j] > drift[largest]) {
+                largest = j;
+            }
+        }
+
+        double secondLargest = 0;
+        for (int j = 0; j < centroids.length; j++) {
+            if (j != largest && drift[j] > secondLargest) {
+                secondLargest = drift[j];
+            }
+        }
+
+        for (int i = 0; i < data.length; i++) {
+            int label = labels[i];
+            upperBounds[i] += drift[label];
+            lowerBounds[i] -= (label == largest) ? secondLargest : drift[largest];
+        }
+    }
+
     private double[][] calculateNewCentroids() {
         double[][] newCentroids = new double[k][data[0].length];
-        int[] counts = new int[k];
+        double[] counts = new double[k];
 
         for (int i = 0; i < data.length; i++) {
             int label = labels[i];
+            double weight = weight(i);
             for (int j = 0; j < data[0].length; j++) {
-                newCentroids[label][j] += data[i][j];
+                newCentroids[label][j] += weight * data[i][j];
             }
-            counts[label]++;
+            counts[label] += weight;
         }
 
         for (int i = 0; i < k; i++) {
@@ -205,6 +618,15 @@ public class KMeans {
         return true;
     }
 
+    private static double squaredDistance(double[] point1, double[] point2) {
+        double sum = 0;
+        for (int i = 0; i < point1.length; i++) {
+            double diff = point1[i] - point2[i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
     private double euclideanDistance(double[] point1, double[] point2) {
         double sum = 0;
         for (int i = 0; i < point1.length; i++) {
@@ -217,7 +639,111 @@ public class KMeans {
         return centroids;
     }
 
+    /**
+     * Input with identical rows collapsed into unique weighted points.
+     * Read-only once built, so several runs can share it.
+     */
+    static final class Deduplicated {
+        final double[][] points; // unique points, in order of first appearance
+        final double[] weights; // total weight of the rows collapsed into each point
+        final int[] index; // row of the input -> row of points
+
+        Deduplicated(double[][] data, double[] rowWeights) {
+            Map<PointKey, Integer> seen = new HashMap<>();
+            List<double[]> unique = new ArrayList<>();
+            List<Double> uniqueWeights = new ArrayList<>();
+            index = new int[data.length];
+
+            for (int i = 0; i < data.length; i++) {
+                double weight = (rowWeights == null) ? 1.0 : rowWeights[i];
+                Integer position = seen.get(new PointKey(data[i]));
+                if (position == null) {
+                    position = unique.size();
+                    seen.put(new PointKey(data[i]), position);
+                    unique.add(data[i]);
+                    uniqueWeights.add(weight);
+                } else {
+                    uniqueWeights.set(position, uniqueWeights.get(position) + weight);
+                }
+                index[i] = position;
+            }
+
+            points = unique.toArray(new double[0][]);
+            weights = new double[uniqueWeights.size()];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = uniqueWeights.get(i);
+            }
+        }
+    }
+
+    /**
+     * Hash key comparing points by value.
+     */
+    private static final class PointKey {
+        private final double[] point;
+        private final int hash;
+
+        PointKey(double[] point) {
+            this.point = point;
+            this.hash = Arrays.hashCode(point);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof PointKey && Arrays.equals(point, ((PointKey) other).point);
+        }
+    }
+
+    /**
+     * @return label of each input row
+     */
     public int[] getLabels() {
-        return labels;
+        if (uniqueIndex == null) {
+            return labels;
+        }
+        if (inputLabels == null) {
+            inputLabels = new int[uniqueIndex.length];
+            for (int i = 0; i < uniqueIndex.length; i++) {
+                inputLabels[i] = labels[uniqueIndex[i]];
+            }
+        }
+        return inputLabels;
+    }
+
+    /**
+     * @return weighted sum of squared distances from each point to its nearest centroid
+     */
+    public double getInertia() {
+        if (Double.isNaN(inertia)) {
+            double sum = 0;
+            for (int i = 0; i < data.length; i++) {
+                double minDist = Double.MAX_VALUE;
+                for (double[] centroid : centroids) {
+                    minDist = Math.min(minDist, squaredDistance(data[i], centroid));
+                }
+                sum += weight(i) * minDist;
+            }
+            inertia = sum;
+        }
+        return inertia;
+    }
+
+    /**
+     * @return number of distinct points clustered (all rows if not deduplicated)
+     */
+    public int getNumPoints() {
+        return data.length;
+    }
+
+    /**
+     * @return number of point-to-centroid distances computed while assigning labels
+     */
+    public long getDistanceCalculations() {
+        return distanceCalculations;
     }
 }
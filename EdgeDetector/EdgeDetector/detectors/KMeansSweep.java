@@ -0,0 +1,251 @@
+package edgedetector.detectors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+
+/**
+ * Runs several KMeans restarts, over a range of k, concurrently on one shared
+ * read-only copy of the data, and keeps the lowest-inertia model for each k.
+ *
+ * <P> Inertia always decreases as k grows, so inertia cannot choose between
+ * different k: getBest() is only defined when a single k was swept. To choose
+ * k, inspect getRuns() or getBestInertias() (e.g. for an elbow) and then call
+ * getBest(k).
+ */
+public class KMeansSweep {
+
+    private final List<Run> runs; // one entry per run, ordered by k then restart
+    private final KMeans[] best; // best model per k, indexed by k - kMin
+    private final int kMin;
+    private final int kMax;
+
+    private KMeansSweep(Builder builder) {
+        this.kMin = builder.kMin;
+        this.kMax = builder.kMax;
+        this.best = new KMeans[kMax - kMin + 1];
+        this.runs = new ArrayList<>();
+
+        runSweep(builder);
+    }
+
+    // Builder class for KMeansSweep
+    public static class Builder {
+        private double[][] data;
+        private double[] weights;
+        private boolean deduplicate = false;
+        private int kMin;
+        private int kMax;
+        private int restarts = 1;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private long seed = System.nanoTime();
+        private UnaryOperator<KMeans.Builder> options = UnaryOperator.identity();
+
+        public Builder(double[][] data) {
+            this.data = data;
+        }
+
+        /**
+         * Cluster with a single k.
+         */
+        public Builder k(int k) {
+            return k(k, k);
+        }
+
+        /**
+         * Cluster with every k from kMin to kMax, inclusive.
+         */
+        public Builder k(int kMin, int kMax) {
+            if (kMin < 1 || kMax < kMin)
+                throw new IllegalArgumentException("Invalid range of k");
+            this.kMin = kMin;
+            this.kMax = kMax;
+            return this;
+        }
+
+        /**
+         * Number of independently seeded runs for each k.
+         */
+        public Builder restarts(int restarts) {
+            if (restarts < 1)
+                throw new IllegalArgumentException("Need at least one restart");
+            this.restarts = restarts;
+            return this;
+        }
+
+        /**
+         * Number of runs executed at the same time.
+         */
+        public Builder threads(int threads) {
+            if (threads < 1)
+                throw new IllegalArgumentException("Need at least one thread");
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Seed from which the seed of every run is derived.
+         */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Per-point weights, see KMeans.Builder.weights().
+         */
+        public Builder weights(double[] weights) {
+            if (weights.length != data.length)
+                throw new IllegalArgumentException("Need exactly one weight per data point");
+            for (double weight : weights)
+                if (!(weight >= 0))
+                    throw new IllegalArgumentException("Weights must be non-negative");
+            this.weights = weights;
+            return this;
+        }
+
+        /**
+         * Collapse identical points once, before any run starts.
+         */
+        public Builder deduplicate(boolean deduplicate) {
+            this.deduplicate = deduplicate;
+            return this;
+        }
+
+        /**
+         * Options applied to every run, e.g. {@code b -> b.pp(true).accelerated(true)}.
+         * The seed, k, data and weights are set by the sweep.
+         */
+        public Builder options(UnaryOperator<KMeans.Builder> options) {
+            this.options = options;
+            return this;
+        }
+
+        public KMeansSweep build() {
+            if (kMin == 0)
+                throw new IllegalStateException("k must be set");
+            return new KMeansSweep(this);
+        }
+    }
+
+    /**
+     * Outcome of a single run.
+     */
+    public static final class Run {
+        private final int k;
+        private final long seed;
+        private final double inertia;
+
+        private Run(int k, long seed, double inertia) {
+            this.k = k;
+            this.seed = seed;
+            this.inertia = inertia;
+        }
+
+        public int getK() {
+            return k;
+        }
+
+        /**
+         * @return seed that reproduces this run through KMeans.Builder.seed()
+         */
+        public long getSeed() {
+            return seed;
+        }
+
+        public double getInertia() {
+            return inertia;
+        }
+    }
+
+    private void runSweep(Builder builder) {
+        // every run reads the same (possibly deduplicated) points and never writes them
+        KMeans.Deduplicated unique = builder.deduplicate ? new KMeans.Deduplicated(builder.data, builder.weights) : null;
+
+        SplittableRandom seeds = new SplittableRandom(builder.seed);
+        List<Future<KMeans>> futures = new ArrayList<>();
+        List<long[]> plan = new ArrayList<>(); // {k, seed} per run
+
+        ExecutorService pool = Executors.newFixedThreadPool(builder.threads);
+        try {
+            for (int k = kMin; k <= kMax; k++) {
+                for (int restart = 0; restart < builder.restarts; restart++) {
+                    final int runK = k;
+                    final long runSeed = seeds.nextLong();
+                    plan.add(new long[] {runK, runSeed});
+                    futures.add(pool.submit(() -> {
+                        KMeans.Builder run = (unique != null) ? new KMeans.Builder(runK, unique)
+                                                              : new KMeans.Builder(runK, builder.data);
+                        if (unique == null && builder.weights != null) {
+                            run.weights(builder.weights);
+                        }
+                        KMeans model = builder.options.apply(run).seed(runSeed).build();
+                        model.getInertia(); // compute on the worker thread
+                        return model;
+                    }));
+                }
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                KMeans model = futures.get(i).get();
+                int k = (int) plan.get(i)[0];
+                runs.add(new Run(k, plan.get(i)[1], model.getInertia()));
+
+                if (best[k - kMin] == null || model.getInertia() < best[k - kMin].getInertia()) {
+                    best[k - kMin] = model;
+                }
+                futures.set(i, null); // let models that lost be collected
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("KMeans sweep interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("KMeans run failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return lowest-inertia model over all runs of a sweep of a single k
+     * @throws IllegalStateException if more than one k was swept; use getBest(k)
+     */
+    public KMeans getBest() {
+        if (kMin != kMax)
+            throw new IllegalStateException("More than one k swept; choose k and call getBest(k)");
+        return best[0];
+    }
+
+    /**
+     * @return lowest-inertia model among the runs with k clusters
+     */
+    public KMeans getBest(int k) {
+        if (k < kMin || k > kMax)
+            throw new IllegalArgumentException("k outside of swept range");
+        return best[k - kMin];
+    }
+
+    /**
+     * @return lowest inertia reached for each k, indexed by k - kMin
+     */
+    public double[] getBestInertias() {
+        double[] inertias = new double[best.length];
+        for (int i = 0; i < best.length; i++) {
+            inertias[i] = best[i].getInertia();
+        }
+        return inertias;
+    }
+
+    /**
+     * @return k, seed and inertia of every run
+     */
+    public List<Run> getRuns() {
+        return Collections.unmodifiableList(runs);
+    }
+}
@@ -0,0 +1,215 @@
+/**************************************************************************
+ * @tags edge detection, image analysis, computer vision
+ *
+ * PURPOSE: Canny's edge detector for images larger than the heap.
+ *
+ * OVERVIEW: The image is decoded in full-width strips, top to bottom, and
+ * every row is pushed through EdgeDetectorEngine's fused Canny RowStream,
+ * so smoothing, gradient and suppression are the engine's. The suppressed
+ * rows go to StripHysteresis, which keeps the weak/strong classes of one
+ * strip on the heap, spills them to a scratch file and links groups across
+ * strip borders with a union-find; a second pass writes the edges as packed
+ * rows straight into an EdgeMapFile. The strip height follows from a memory
+ * budget, and nothing with one entry per pixel of the whole image is kept
+ * on the heap.
+ *
+ * Results are identical to CannyEdgeDetector with explicit thresholds and
+ * minEdgeSize applied. Heap use is about BYTES_PER_PIXEL bytes per strip
+ * pixel plus a few ints per column per strip and per border-crossing group.
+ **************************************************************************/
+
+package edgedetector.detectors;
+
+import edgedetector.grayscale.TiledImageSource;
+import edgedetector.imagederivatives.ConvolutionKernel;
+import edgedetector.util.EdgeMapFile;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+
+public class OutOfCoreCannyDetector {
+
+   /***********************************************************************
+    * Static fields
+    **********************************************************************/
+
+   /**
+    * Estimated heap bytes per strip pixel: decoded raster and gray (4 each),
+    * class (1), label (4), slack. The engine's row rings depend on the width only.
+    */
+   public static final int BYTES_PER_PIXEL = 16;
+
+   // rows and columns of the image lost to the 5x5 Gaussian and 3x3 Sobel kernels
+   private static final int BORDER = ConvolutionKernel.GAUSSIAN_KERNEL.length - 1
+                                     + CannyEdgeDetector.getX_KERNEL().length - 1;
+
+
+   /***********************************************************************
+    * Fields
+    **********************************************************************/
+
+   // dimensions of the edge map; smaller than the image because of the convolutions
+   private int rows;
+   private int columns;
+   private int stripRows;
+   private int strips;
+   private long numEdgePixels;
+   private int globalComponents;
+
+
+   /***********************************************************************
+    * Constructor
+    **********************************************************************/
+
+   /**
+    * All work is done in constructor.
+    * @param builder
+    * @throws IOException if the image cannot be decoded or a file cannot be written
+    */
+   private OutOfCoreCannyDetector(Builder builder) throws IOException {
+      try (TiledImageSource source = new TiledImageSource(builder.imagePath)) {
+         rows = source.getHeight() - BORDER;
+         columns = source.getWidth() - BORDER;
+         if (rows <= 0 || columns <= 0)
+            throw new IllegalArgumentException("Image smaller than the convolution kernels");
+
+         long fit = builder.memoryBudget / ((long) BYTES_PER_PIXEL * source.getWidth());
+         if (fit < 1)
+            throw new IllegalArgumentException("Memory budget too small for one strip row");
+         int strip = (int) Math.min(Math.min(fit, rows), Integer.MAX_VALUE / source.getWidth());
+
+         try (StripHysteresis hysteresis = new StripHysteresis(rows, columns, builder.lowThreshold,
+                 builder.highThreshold, builder.minEdgeSize, strip, builder.scratchDirectory)) {
+            hysteresis.read(source, builder.L1norm);
+
+            EdgeMapFile.createPacked(builder.edgeMapPath, rows, columns);
+            try (FileChannel out = FileChannel.open(Paths.get(builder.edgeMapPath), StandardOpenOption.WRITE)) {
+               numEdgePixels = hysteresis.write(PackedRowSink.of(out, columns));
+            }
+            stripRows = hysteresis.getStripRows();
+            strips = hysteresis.getStrips();
+            globalComponents = hysteresis.getGlobalComponents();
+         }
+      }
+   }
+
+   /**
+    * Builder class for constructing OutOfCoreCannyDetector objects.
+    */
+   public static class Builder {
+
+      // required parameters
+      private String imagePath;
+      private String edgeMapPath;
+      private int lowThreshold;
+      private int highThreshold;
+
+      // optional parameters (default values given)
+      private int minEdgeSize = 0;
+      private boolean L1norm = false;
+      private long memoryBudget = 256L << 20;
+      private Path scratchDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+
+      /**
+       * @param imagePath image to read strip by strip
+       * @param edgeMapPath EdgeMapFile (packed) that receives the edges
+       * @param lowThreshold
+       * @param highThreshold
+       */
+      public Builder(String imagePath, String edgeMapPath, int lowThreshold, int highThreshold) {
+         if (lowThreshold > highThreshold || lowThreshold < 0 || highThreshold > 255)
+            throw new IllegalArgumentException("Invalid threshold values");
+         this.imagePath = imagePath;
+         this.edgeMapPath = edgeMapPath;
+         this.lowThreshold = lowThreshold;
+         this.highThreshold = highThreshold;
+      }
+
+      /**
+       * Minimum number of pixels an edge must contain to be kept.
+       * @param minEdgeSize
+       * @return
+       */
+      public Builder minEdgeSize(int minEdgeSize) {
+         this.minEdgeSize = minEdgeSize;
+         return this;
+      }
+
+      public Builder L1norm(boolean L1norm) {
+         this.L1norm = L1norm;
+         return this;
+      }
+
+      /**
+       * Heap bytes that the intermediates of one strip may use; sets the strip height.
+       * @param memoryBudget
+       * @return
+       */
+      public Builder memoryBudget(long memoryBudget) {
+         if (memoryBudget <= 0)
+            throw new IllegalArgumentException("Invalid memory budget");
+         this.memoryBudget = memoryBudget;
+         return this;
+      }
+
+      /**
+       * Directory of the scratch file with the hysteresis classes (one byte
+       * per pixel, deleted afterwards). Defaults to java.io.tmpdir.
+       * @param scratchDirectory
+       * @return
+       */
+      public Builder scratchDirectory(String scratchDirectory) {
+         this.scratchDirectory = Paths.get(scratchDirectory);
+         return this;
+      }
+
+      public OutOfCoreCannyDetector build() throws IOException {
+         return new OutOfCoreCannyDetector(this);
+      }
+   }
+
+
+   /***********************************************************************
+    * Accessors
+    ***********************************************************************/
+
+   /**
+    * @return # of rows of the edge map
+    */
+   public int getRows() {
+      return rows;
+   }
+
+   /**
+    * @return # of columns of the edge map
+    */
+   public int getColumns() {
+      return columns;
+   }
+
+   /**
+    * @return # of image rows processed per strip, as set by the memory budget
+    */
+   public int getStripRows() {
+      return stripRows;
+   }
+
+   public int getStrips() {
+      return strips;
+   }
+
+   public long getNumEdgePixels() {
+      return numEdgePixels;
+   }
+
+   /**
+    * @return # of union-find entries, i.e. groups that touched a strip border
+    */
+   public int getGlobalComponents() {
+      return globalComponents;
+   }
+}
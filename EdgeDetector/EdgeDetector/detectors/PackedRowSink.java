@@ -0,0 +1,43 @@
+package edgedetector.detectors;
+
+import edgedetector.util.EdgeMapFile;
+import edgedetector.util.PackedEdgeMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Receives an edge map row by row, packed as in PackedEdgeMap.
+ */
+interface PackedRowSink {
+
+   /**
+    * @param row
+    * @param bits holds the packed row from offset on; only valid during the call
+    * @param offset
+    */
+   void put(int row, byte[] bits, int offset) throws IOException;
+
+   /**
+    * @return sink that copies the rows into map
+    */
+   static PackedRowSink of(PackedEdgeMap map) {
+      int stride = PackedEdgeMap.strideOf(map.getColumns());
+      return (row, bits, offset) -> System.arraycopy(bits, offset, map.getBits(), row * stride, stride);
+   }
+
+   /**
+    * @param file channel of a file made by EdgeMapFile.createPacked(), open for writing
+    * @return sink that writes the rows at their place in file
+    */
+   static PackedRowSink of(FileChannel file, int columns) {
+      int stride = PackedEdgeMap.strideOf(columns);
+      return (row, bits, offset) -> {
+         ByteBuffer buffer = ByteBuffer.wrap(bits, offset, stride);
+         long position = EdgeMapFile.packedRowOffset(row, columns);
+         while (buffer.hasRemaining())
+            position += file.write(buffer, position);
+      };
+   }
+}
@@ -0,0 +1,302 @@
+/**************************************************************************
+ * @tags edge detection, image analysis, computer vision
+ *
+ * PURPOSE: Canny's edge detector that skips flat regions of large images.
+ *
+ * OVERVIEW: Coarse to fine:
+ *
+ *    1. Build an image pyramid by averaging 2x2 pixels, levels times.
+ *    2. Find coarse edge candidates: pixels of the coarsest level whose
+ *       smoothed gradient magnitude reaches the coarse threshold. (Coarse
+ *       Canny with suppression would miss the centers of thin lines, which
+ *       CannyEdgeDetector's in-place suppression zeroes.)
+ *    3. Map every candidate back to full resolution, grow it by margin
+ *       pixels (the recall safety margin) and flag the blocks it touches.
+ *    4. Run full-resolution smoothing, gradient and non-maximum suppression
+ *       only in flagged blocks (EdgeDetectorEngine block-restricted detect),
+ *       then hysteresis as usual.
+ *
+ * Edges missed at the coarse level (faint or thin structures that averaging
+ * washes out) are lost unless a neighboring coarse edge flags their block,
+ * so a larger margin or a lower coarse threshold trades speed for recall.
+ * getSkippedFraction() reports the share of output pixels never processed.
+ **************************************************************************/
+
+package edgedetector.detectors;
+
+
+public class PyramidCannyDetector {
+
+   /***********************************************************************
+    * Fields
+    **********************************************************************/
+
+   // final answer: [i][j] is true iff pixel is part of edge
+   private boolean[][] edges;
+
+   // number of edge pixels
+   private int numEdgePixels;
+
+   // dimensions of edges[][]; smaller than original image because of image convolution
+   private int rows;
+   private int columns;
+
+   // pyramid levels actually built (fewer than asked for small images)
+   private int levels;
+
+   // fraction of output pixels outside flagged blocks
+   private double skippedFraction;
+
+
+   /***********************************************************************
+    * Constructor
+    **********************************************************************/
+
+   /**
+    * All work is done in constructor.
+    * @param builder
+    */
+   private PyramidCannyDetector(Builder builder) {
+      findEdges(builder);
+   }
+
+   /**
+    * Builder class for constructing PyramidCannyDetector objects.
+    */
+   public static class Builder {
+
+      // required parameters
+      private int[][] image;
+      private int lowThreshold;
+      private int highThreshold;
+
+      // optional parameters (default values given)
+      private int coarseThreshold = -1;     // -1: lowThreshold / 2
+      private int levels = 2;
+      private int margin = -1;              // -1: twice the coarse pixel size
+      private int blockSize = 16;
+      private int minEdgeSize = 0;
+      private boolean L1norm = false;
+
+      /**
+       * @param image gray pixels
+       * @param lowThreshold full-resolution Canny thresholds
+       * @param highThreshold
+       */
+      public Builder(int[][] image, int lowThreshold, int highThreshold) {
+         if (lowThreshold > highThreshold || lowThreshold < 0 || highThreshold > 255)
+            throw new IllegalArgumentException("Invalid threshold values");
+         this.image = image;
+         this.lowThreshold = lowThreshold;
+         this.highThreshold = highThreshold;
+      }
+
+      /**
+       * Number of times the image is halved before coarse detection.
+       * @param levels
+       * @return
+       */
+      public Builder levels(int levels) {
+         if (levels < 0)
+            throw new IllegalArgumentException("Invalid number of levels");
+         this.levels = levels;
+         return this;
+      }
+
+      /**
+       * Recall safety margin: distance in full-resolution pixels around coarse
+       * edges that is still processed at full resolution.
+       * @param margin
+       * @return
+       */
+      public Builder margin(int margin) {
+         if (margin < 0)
+            throw new IllegalArgumentException("Invalid margin");
+         this.margin = margin;
+         return this;
+      }
+
+      /**
+       * Smallest coarse gradient magnitude that marks an edge candidate (half
+       * the low threshold by default, as averaging weakens thin structures).
+       * @param coarseThreshold
+       * @return
+       */
+      public Builder coarseThreshold(int coarseThreshold) {
+         if (coarseThreshold < 0 || coarseThreshold > 255)
+            throw new IllegalArgumentException("Invalid threshold value");
+         this.coarseThreshold = coarseThreshold;
+         return this;
+      }
+
+      /**
+       * Side of the full-resolution blocks that are processed or skipped whole.
+       * @param blockSize
+       * @return
+       */
+      public Builder blockSize(int blockSize) {
+         if (blockSize < 1)
+            throw new IllegalArgumentException("Invalid block size");
+         this.blockSize = blockSize;
+         return this;
+      }
+
+      public Builder minEdgeSize(int minEdgeSize) {
+         this.minEdgeSize = minEdgeSize;
+         return this;
+      }
+
+      public Builder L1norm(boolean L1norm) {
+         this.L1norm = L1norm;
+         return this;
+      }
+
+      public PyramidCannyDetector build() {
+         return new PyramidCannyDetector(this);
+      }
+   }
+
+
+   /***********************************************************************
+    * Coarse-to-fine detection
+    ***********************************************************************/
+
+   private void findEdges(Builder builder) {
+      int height = builder.image.length;
+      int width = builder.image[0].length;
+      EdgeDetectorEngine fine = new EdgeDetectorEngine.Builder()
+              .canny(builder.lowThreshold, builder.highThreshold)
+              .minEdgeSize(builder.minEdgeSize)
+              .L1norm(builder.L1norm)
+              .build();
+      rows = fine.outputRows(height);
+      columns = fine.outputColumns(width);
+      if (rows <= 0 || columns <= 0)
+         throw new IllegalArgumentException("Image smaller than the convolution kernels");
+      int border = height - rows; // pixels lost to the kernels, split evenly at both sides
+
+      int[] gray = new int[width * height];
+      for (int i = 0; i < height; i++)
+         System.arraycopy(builder.image[i], 0, gray, i * width, width);
+
+      //===================== STEP 1: IMAGE PYRAMID =====================//
+
+      int[] coarse = gray;
+      int cw = width;
+      int ch = height;
+      levels = 0;
+      while (levels < builder.levels && cw / 2 > border && ch / 2 > border) {
+         coarse = halve(coarse, cw, ch);
+         cw /= 2;
+         ch /= 2;
+         levels++;
+      }
+      int scale = 1 << levels;
+
+      //==================== STEP 2: COARSE DETECTION ===================//
+
+      int coarseThreshold = builder.coarseThreshold >= 0 ? builder.coarseThreshold : builder.lowThreshold / 2;
+      int cRows = fine.outputRows(ch);
+      int cColumns = fine.outputColumns(cw);
+      int[] coarseMag = new int[cRows * cColumns];
+      fine.magnitudes(coarse, cw, ch, coarseMag);
+
+      //======================= STEP 3: FLAG BLOCKS =====================//
+
+      int block = builder.blockSize;
+      int margin = builder.margin >= 0 ? builder.margin : 2 * scale;
+      int blocksX = (columns + block - 1) / block;
+      int blocksY = (rows + block - 1) / block;
+      boolean[] blocks = new boolean[blocksX * blocksY];
+      int half = border / 2;
+
+      for (int ci = 0; ci < cRows; ci++) {
+         for (int cj = 0; cj < cColumns; cj++) {
+            if (coarseMag[ci * cColumns + cj] < coarseThreshold)
+               continue;
+            // coarse output (ci, cj) is coarse pixel (ci + half, cj + half), which
+            // covers full pixels [(ci + half) * scale, (ci + half + 1) * scale)
+            int i0 = Math.max(0, (ci + half) * scale - half - margin);
+            int i1 = Math.min(rows - 1, (ci + half + 1) * scale - 1 - half + margin);
+            int j0 = Math.max(0, (cj + half) * scale - half - margin);
+            int j1 = Math.min(columns - 1, (cj + half + 1) * scale - 1 - half + margin);
+            for (int by = i0 / block; by <= i1 / block; by++)
+               for (int bx = j0 / block; bx <= j1 / block; bx++)
+                  blocks[by * blocksX + bx] = true;
+         }
+      }
+
+      long processed = 0;
+      for (int by = 0; by < blocksY; by++)
+         for (int bx = 0; bx < blocksX; bx++)
+            if (blocks[by * blocksX + bx])
+               processed += (long) (Math.min(rows, (by + 1) * block) - by * block)
+                            * (Math.min(columns, (bx + 1) * block) - bx * block);
+      skippedFraction = 1 - processed / ((double) rows * columns);
+
+      //================= STEP 4: FULL-RESOLUTION CANNY =================//
+
+      boolean[] flat = new boolean[rows * columns];
+      numEdgePixels = fine.detect(gray, width, height, blocks, block, flat);
+      edges = new boolean[rows][columns];
+      for (int i = 0; i < rows; i++)
+         System.arraycopy(flat, i * columns, edges[i], 0, columns);
+   }
+
+   /**
+    * @return image at half the width and height, each pixel the rounded mean of 2x2 pixels
+    */
+   private static int[] halve(int[] image, int width, int height) {
+      int w = width / 2;
+      int h = height / 2;
+      int[] out = new int[w * h];
+      for (int i = 0; i < h; i++) {
+         int p = 2 * i * width;
+         for (int j = 0; j < w; j++, p += 2)
+            out[i * w + j] = (image[p] + image[p + 1] + image[p + width] + image[p + width + 1] + 2) >> 2;
+      }
+      return out;
+   }
+
+
+   /***********************************************************************
+    * Accessors
+    ***********************************************************************/
+
+   /**
+    * @return edges detected by the pyramid Canny detector
+    */
+   public boolean[][] getEdges() {
+      return edges;
+   }
+
+   /**
+    * @return # of edge pixels
+    */
+   public int getNumEdgePixels() {
+      return numEdgePixels;
+   }
+
+   /**
+    * @return # of pyramid levels used (fewer than asked if the image is small)
+    */
+   public int getLevels() {
+      return levels;
+   }
+
+   /**
+    * @return fraction of output pixels whose smoothing, gradient and
+    * suppression were skipped
+    */
+   public double getSkippedFraction() {
+      return skippedFraction;
+   }
+
+   public int getRows() {
+      return rows;
+   }
+
+   public int getColumns() {
+      return columns;
+   }
+}
@@ -14,11 +14,11 @@ public class SobelEdgeDetector extends GaussianEdgeDetector {
    /*********************************************************************
     * Convolution kernels
     *********************************************************************/
-   private final static double[][] X_kernel = {{-1, 0, 1},
+   final static double[][] X_kernel = {{-1, 0, 1},
            {-2, 0, 2},
            {-1, 0, 1}};
 
-   private final static double[][] Y_kernel = {{1, 2, 1},
+   final static double[][] Y_kernel = {{1, 2, 1},
            {0, 0, 0},
            {-1, -2, -1}};
 
@@ -61,6 +61,22 @@ public class SobelEdgeDetector extends GaussianEdgeDetector {
       }
    }
 
+   /**
+    * All work is done in constructor.
+    * <P> Preview mode: decodes the image subsampled so that neither side is
+    * longer than previewSize and finds edges on the smaller image. toImageCoordinates()
+    * maps edge coordinates back to the full image.
+    * @param filePath path to image
+    * @param previewSize longest side of the decoded image, in pixels
+    */
+   public SobelEdgeDetector(String filePath, int previewSize) {
+      try {
+         findEdgesPreview(filePath, previewSize, false);
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+   }
+
    /**
     * All work is done in constructor.
     * <P> Uses L2 norm by default.
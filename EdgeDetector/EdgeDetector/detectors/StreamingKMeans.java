@@ -0,0 +1,245 @@
+package edgedetector.detectors;
+
+import edgedetector.util.CSVreader;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.UnaryOperator;
+
+/**
+ * KMeans over CSV files larger than memory.
+ *
+ * <P> The file is read in chunks. Each chunk is reduced to at most summarySize
+ * weighted points (cluster features: the mean and total weight of the points
+ * they absorbed) by a weighted KMeans, and merged into a running summary. When
+ * the summary outgrows summarySize it is reduced the same way (merge and reduce),
+ * so the heap only ever holds one chunk plus two summaries. The final k centroids
+ * are found by clustering the summary with the point weights.
+ */
+public class StreamingKMeans {
+
+    private int k; // number of clusters
+    private int summarySize; // max weighted points kept between chunks
+    private int reduceIterations; // Lloyd iterations used to reduce a chunk or the summary
+    private int restarts; // restarts of the final clustering
+    private UnaryOperator<KMeans.Builder> options; // options of the final clustering
+    private Random rand;
+
+    private double[][] summary; // cluster feature means
+    private double[] summaryWeights; // number of points (or total weight) behind each mean
+    private int summaryCount; // used entries of summary
+
+    private double[][] centroids; // final answer
+    private double inertia; // inertia of the final clustering of the summary
+    private long pointsRead;
+
+    private StreamingKMeans(Builder builder) throws IOException {
+        this.k = builder.k;
+        this.summarySize = builder.summarySize;
+        this.reduceIterations = builder.reduceIterations;
+        this.restarts = builder.restarts;
+        this.options = builder.options;
+        this.rand = builder.seeded ? new Random(builder.seed) : new Random();
+
+        pointsRead = CSVreader.readChunks(builder.inFile, builder.chunkRows, this::addChunk);
+        if (summaryCount == 0)
+            throw new IllegalArgumentException("No data in " + builder.inFile);
+        cluster();
+    }
+
+    // Builder class for StreamingKMeans
+    public static class Builder {
+        private int k;
+        private String inFile;
+        private int chunkRows = 100000;
+        private int summarySize;
+        private int reduceIterations = 10;
+        private int restarts = 1;
+        private UnaryOperator<KMeans.Builder> options = b -> b.pp(true).accelerated(true);
+        private boolean seeded = false;
+        private long seed;
+
+        public Builder(int k, String inFile) {
+            if (k < 1)
+                throw new IllegalArgumentException("k must be positive");
+            this.k = k;
+            this.inFile = inFile;
+            this.summarySize = Math.max(20 * k, 200);
+        }
+
+        /**
+         * Number of CSV rows held in memory at once.
+         */
+        public Builder chunkRows(int chunkRows) {
+            if (chunkRows < 1)
+                throw new IllegalArgumentException("Invalid chunk size");
+            this.chunkRows = chunkRows;
+            return this;
+        }
+
+        /**
+         * Maximum number of weighted summary points kept between chunks.
+         * Larger summaries give centroids closer to in-memory KMeans.
+         */
+        public Builder summarySize(int summarySize) {
+            if (summarySize < k)
+                throw new IllegalArgumentException("Summary must hold at least k points");
+            this.summarySize = summarySize;
+            return this;
+        }
+
+        public Builder reduceIterations(int reduceIterations) {
+            this.reduceIterations = reduceIterations;
+            return this;
+        }
+
+        /**
+         * Number of seeded restarts of the final clustering (see KMeansSweep).
+         */
+        public Builder restarts(int restarts) {
+            if (restarts < 1)
+                throw new IllegalArgumentException("Need at least one restart");
+            this.restarts = restarts;
+            return this;
+        }
+
+        /**
+         * Options for the final clustering of the summary, e.g. {@code b -> b.iterations(300)}.
+         */
+        public Builder options(UnaryOperator<KMeans.Builder> options) {
+            this.options = options;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seeded = true;
+            this.seed = seed;
+            return this;
+        }
+
+        public StreamingKMeans build() throws IOException {
+            return new StreamingKMeans(this);
+        }
+    }
+
+    private void addChunk(double[][] chunk) {
+        if (summary == null) {
+            summary = new double[2 * summarySize][];
+            summaryWeights = new double[2 * summarySize];
+        }
+
+        Summary reduced = reduce(chunk, null);
+        System.arraycopy(reduced.points, 0, summary, summaryCount, reduced.points.length);
+        System.arraycopy(reduced.weights, 0, summaryWeights, summaryCount, reduced.weights.length);
+        summaryCount += reduced.points.length;
+
+        if (summaryCount > summarySize) {
+            double[][] points = new double[summaryCount][];
+            double[] weights = new double[summaryCount];
+            System.arraycopy(summary, 0, points, 0, summaryCount);
+            System.arraycopy(summaryWeights, 0, weights, 0, summaryCount);
+
+            reduced = reduce(points, weights);
+            Arrays.fill(summary, null);
+            System.arraycopy(reduced.points, 0, summary, 0, reduced.points.length);
+            System.arraycopy(reduced.weights, 0, summaryWeights, 0, reduced.weights.length);
+            summaryCount = reduced.points.length;
+        }
+    }
+
+    /**
+     * Replaces points by at most summarySize cluster features.
+     */
+    private Summary reduce(double[][] points, double[] weights) {
+        if (points.length <= summarySize) {
+            double[] w = weights;
+            if (w == null) {
+                w = new double[points.length];
+                Arrays.fill(w, 1.0);
+            }
+            return new Summary(points, w);
+        }
+
+        KMeans.Builder builder = new KMeans.Builder(summarySize, points)
+                .parallelInit(true)
+                .accelerated(true)
+                .iterations(reduceIterations)
+                .seed(rand.nextLong());
+        if (weights != null) {
+            builder.weights(weights);
+        }
+        KMeans reducer = builder.build();
+
+        // weight of a cluster feature = total weight of the points it absorbed
+        double[][] means = reducer.getCentroids();
+        double[] totals = new double[means.length];
+        int[] labels = reducer.getLabels();
+        for (int i = 0; i < points.length; i++) {
+            totals[labels[i]] += (weights == null) ? 1.0 : weights[i];
+        }
+
+        int used = 0;
+        for (double total : totals) {
+            if (total > 0) used++;
+        }
+        double[][] keptMeans = new double[used][];
+        double[] keptTotals = new double[used];
+        used = 0;
+        for (int c = 0; c < means.length; c++) {
+            if (totals[c] > 0) {
+                keptMeans[used] = means[c];
+                keptTotals[used++] = totals[c];
+            }
+        }
+        return new Summary(keptMeans, keptTotals);
+    }
+
+    private void cluster() {
+        double[][] points = new double[summaryCount][];
+        double[] weights = new double[summaryCount];
+        System.arraycopy(summary, 0, points, 0, summaryCount);
+        System.arraycopy(summaryWeights, 0, weights, 0, summaryCount);
+        summary = null;
+        summaryWeights = null;
+
+        KMeansSweep sweep = new KMeansSweep.Builder(points)
+                .k(Math.min(k, summaryCount))
+                .restarts(restarts)
+                .weights(weights)
+                .seed(rand.nextLong())
+                .options(options)
+                .build();
+        KMeans best = sweep.getBest();
+        centroids = best.getCentroids();
+        inertia = best.getInertia();
+    }
+
+    private static final class Summary {
+        final double[][] points;
+        final double[] weights;
+
+        Summary(double[][] points, double[] weights) {
+            this.points = points;
+            this.weights = weights;
+        }
+    }
+
+    public double[][] getCentroids() {
+        return centroids;
+    }
+
+    /**
+     * @return number of rows read from the CSV file
+     */
+    public long getPointsRead() {
+        return pointsRead;
+    }
+
+    /**
+     * @return inertia of the final clustering, measured on the weighted summary
+     */
+    public double getSummaryInertia() {
+        return inertia;
+    }
+}
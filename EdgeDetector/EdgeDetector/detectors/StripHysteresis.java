@@ -0,0 +1,413 @@
+package edgedetector.detectors;
+
+import edgedetector.grayscale.TiledImageSource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Canny's hysteresis over full-width strips of an image, for
+ * TiledEdgeDetector and OutOfCoreCannyDetector. Suppressed rows come from an
+ * EdgeDetectorEngine.RowStream, so smoothing, gradient and suppression are
+ * the engine's; only the weak/strong classes of one strip are on the heap.
+ *
+ *    pass 1 (accept):
+ *       rows are classified into the current strip. A finished strip is
+ *       spilled to a scratch file (unless it is the only one) and its
+ *       weak/strong groups are labeled; groups touching the strip's first or
+ *       last row get a union-find entry (size and whether they hold a strong
+ *       pixel), and first-row groups are joined with the 8-connected groups
+ *       of the last row of the strip above.
+ *    pass 2 (write):
+ *       every strip is read back and labeled again (same labels). Groups
+ *       inside the strip are kept or dropped on their own, groups crossing
+ *       strip borders by their union-find root. Rows go to a PackedRowSink.
+ *
+ * Results are identical to CannyEdgeDetector's hysteresis with minEdgeSize
+ * applied.
+ */
+final class StripHysteresis implements EdgeDetectorEngine.RowSink, Closeable {
+
+   private static final byte NONE = TiledEdgeDetector.NONE;
+   private static final byte WEAK = TiledEdgeDetector.WEAK;
+   private static final byte STRONG = TiledEdgeDetector.STRONG;
+
+   private final int rows;
+   private final int columns;
+   private final int lowThreshold;
+   private final int highThreshold;
+   private final int minEdgeSize;
+   private final int stripRows;
+   private final int strips;
+   private final Path scratchDirectory;
+
+   // classes of the current strip
+   private final byte[] classes;
+
+   // spilled classes of every strip; only made when there are several strips
+   private Path scratch;
+   private FileChannel spill;
+
+   // labels of the current strip
+   private int[] labels = new int[0];
+   private int[] componentSize = new int[64];
+   private boolean[] componentStrong = new boolean[64];
+   private int[] stack = new int[64];
+
+   // union-find ids of the groups on each strip's first and last row, or -1
+   private final List<int[]> firstRows = new ArrayList<>();
+   private final List<int[]> lastRows = new ArrayList<>();
+
+   // union-find over groups that cross strip borders
+   private int[] parent = new int[64];
+   private long[] size = new long[64];
+   private boolean[] strong = new boolean[64];
+   private int globalComponents;
+
+   private long numEdgePixels;
+
+   /**
+    * @param rows rows of the edge map
+    * @param columns columns of the edge map
+    * @param lowThreshold
+    * @param highThreshold
+    * @param minEdgeSize
+    * @param stripRows rows per strip; the classes of one strip are kept on the heap
+    * @param scratchDirectory directory of the scratch file with the classes (one byte per pixel)
+    */
+   StripHysteresis(int rows, int columns, int lowThreshold, int highThreshold, int minEdgeSize, int stripRows,
+                   Path scratchDirectory) {
+      if (rows <= 0 || columns <= 0)
+         throw new IllegalArgumentException("Image smaller than the convolution kernels");
+      if (stripRows < 1 || (long) stripRows * columns > Integer.MAX_VALUE)
+         throw new IllegalArgumentException("Invalid strip height");
+      this.rows = rows;
+      this.columns = columns;
+      this.lowThreshold = lowThreshold;
+      this.highThreshold = highThreshold;
+      this.minEdgeSize = minEdgeSize;
+      this.stripRows = Math.min(stripRows, rows);
+      this.strips = (rows + this.stripRows - 1) / this.stripRows;
+      this.scratchDirectory = scratchDirectory;
+      this.classes = new byte[this.stripRows * columns];
+   }
+
+   /**
+    * Pass 1 for a whole image: decodes it once, top to bottom, in bands of
+    * stripRows rows (TiledImageSource.readRows()) and pushes the rows through
+    * a Canny engine into this.
+    * @return # of reads from the image file
+    * @throws IOException if the image cannot be decoded or the scratch file cannot be written
+    */
+   int read(TiledImageSource source, boolean L1norm) throws IOException {
+      EdgeDetectorEngine engine = new EdgeDetectorEngine.Builder()
+              .canny(lowThreshold, highThreshold)
+              .L1norm(L1norm)
+              .build();
+      EdgeDetectorEngine.RowStream stream = engine.stream(source.getWidth(), this);
+
+      int decoded;
+      try {
+         decoded = source.readRows(stripRows, (y, gray) -> {
+            for (int[] row : gray)
+               stream.push(row);
+         });
+         if (stream.end() != rows)
+            throw new IllegalArgumentException("Image does not match the edge map");
+      } catch (UncheckedIOException e) {
+         throw e.getCause();
+      }
+      return decoded;
+   }
+
+
+   /***********************************************************************
+    * Pass 1: classes and stitching
+    ***********************************************************************/
+
+   @Override
+   public void accept(int i, int[] suppressed) {
+      int s = i / stripRows;
+      int r0 = s * stripRows;
+      int h = Math.min(rows, r0 + stripRows) - r0;
+
+      int p = (i - r0) * columns;
+      for (int j = 0; j < columns; j++)
+         classes[p + j] = (suppressed[j] >= highThreshold) ? STRONG
+                        : (suppressed[j] >= lowThreshold) ? WEAK : NONE;
+
+      if (i - r0 == h - 1) {
+         try {
+            link(r0, h);
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      }
+   }
+
+   private void link(int r0, int h) throws IOException {
+      if (strips > 1) {
+         if (spill == null) {
+            scratch = Files.createTempFile(scratchDirectory, "canny-classes", ".tmp");
+            spill = FileChannel.open(scratch, StandardOpenOption.READ, StandardOpenOption.WRITE);
+         }
+         ByteBuffer buffer = ByteBuffer.wrap(classes, 0, h * columns);
+         long position = (long) r0 * columns;
+         while (buffer.hasRemaining())
+            position += spill.write(buffer, position);
+      }
+
+      // union-find entries for the groups on the strip's first and last rows
+      int count = label(h);
+      int[] global = new int[count];
+      Arrays.fill(global, -1);
+      int[] first = borderIds(0, global);
+      int[] last = borderIds(h - 1, global);
+
+      if (!lastRows.isEmpty()) {
+         int[] above = lastRows.get(lastRows.size() - 1);
+         for (int j = 0; j < columns; j++) {
+            if (first[j] < 0)
+               continue;
+            for (int nj = Math.max(0, j - 1); nj <= Math.min(columns - 1, j + 1); nj++)
+               if (above[nj] >= 0)
+                  union(first[j], above[nj]);
+         }
+      }
+      firstRows.add(first);
+      lastRows.add(last);
+   }
+
+   /**
+    * @return union-find id of the group at every column of strip row i, or -1;
+    *         groups get an id the first time they are seen
+    */
+   private int[] borderIds(int i, int[] global) {
+      int[] ids = new int[columns];
+      for (int j = 0; j < columns; j++) {
+         int label = labels[i * columns + j];
+         if (label < 0) {
+            ids[j] = -1;
+            continue;
+         }
+         if (global[label] < 0)
+            global[label] = add(componentSize[label], componentStrong[label]);
+         ids[j] = global[label];
+      }
+      return ids;
+   }
+
+
+   /***********************************************************************
+    * Pass 2: edges
+    ***********************************************************************/
+
+   /**
+    * Writes every row of the edge map to out, top to bottom.
+    * @return # of edge pixels
+    * @throws IOException if the scratch file cannot be read or out fails
+    */
+   long write(PackedRowSink out) throws IOException {
+      if (firstRows.size() != strips)
+         throw new IllegalStateException("Not every row has been accepted");
+      byte[] row = new byte[(columns + 7) >>> 3];
+
+      for (int s = 0; s < strips; s++) {
+         int r0 = s * stripRows;
+         int h = Math.min(rows, r0 + stripRows) - r0;
+
+         if (spill != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(classes, 0, h * columns);
+            long position = (long) r0 * columns;
+            while (buffer.hasRemaining()) {
+               int n = spill.read(buffer, position);
+               if (n < 0)
+                  throw new IOException("Scratch file truncated");
+               position += n;
+            }
+         }
+         int count = label(h);
+
+         // groups crossing a strip border follow their union-find root
+         int[] global = new int[count];
+         Arrays.fill(global, -1);
+         int[] first = firstRows.get(s);
+         int[] last = lastRows.get(s);
+         for (int j = 0; j < columns; j++) {
+            if (first[j] >= 0)
+               global[labels[j]] = first[j];
+            if (last[j] >= 0)
+               global[labels[(h - 1) * columns + j]] = last[j];
+         }
+         boolean[] keep = new boolean[count];
+         for (int l = 0; l < count; l++) {
+            if (global[l] >= 0) {
+               int root = find(global[l]);
+               keep[l] = strong[root] && size[root] >= minEdgeSize;
+            } else {
+               keep[l] = componentStrong[l] && componentSize[l] >= minEdgeSize;
+            }
+         }
+
+         for (int i = 0; i < h; i++) {
+            Arrays.fill(row, (byte) 0);
+            for (int j = 0; j < columns; j++) {
+               int label = labels[i * columns + j];
+               if (label >= 0 && keep[label]) {
+                  row[j >>> 3] |= (byte) (0x80 >>> (j & 7));
+                  numEdgePixels++;
+               }
+            }
+            out.put(r0 + i, row, 0);
+         }
+      }
+      return numEdgePixels;
+   }
+
+   /**
+    * Deletes the scratch file.
+    */
+   @Override
+   public void close() throws IOException {
+      if (spill != null) {
+         spill.close();
+         spill = null;
+         Files.deleteIfExists(scratch);
+      }
+   }
+
+
+   /***********************************************************************
+    * Labels
+    ***********************************************************************/
+
+   /**
+    * Labels the 8-connected groups of weak and strong pixels of the h rows in
+    * classes in raster order of their first pixel, so equal classes give
+    * equal labels. Fills labels, componentSize and componentStrong.
+    * @return # of groups
+    */
+   private int label(int h) {
+      int pixels = h * columns;
+      if (labels.length < pixels)
+         labels = new int[pixels];
+      Arrays.fill(labels, 0, pixels, -1);
+
+      int count = 0;
+      for (int start = 0; start < pixels; start++) {
+         if (classes[start] == NONE || labels[start] >= 0)
+            continue;
+         if (count == componentSize.length) {
+            componentSize = Arrays.copyOf(componentSize, 2 * count);
+            componentStrong = Arrays.copyOf(componentStrong, 2 * count);
+         }
+
+         int members = 0;
+         boolean hasStrong = false;
+         int top = 0;
+         stack[top++] = start;
+         labels[start] = count;
+         while (top > 0) {
+            int p = stack[--top];
+            members++;
+            hasStrong |= classes[p] == STRONG;
+
+            int pr = p / columns;
+            int pc = p - pr * columns;
+            for (int nr = Math.max(0, pr - 1); nr <= Math.min(h - 1, pr + 1); nr++) {
+               for (int nc = Math.max(0, pc - 1); nc <= Math.min(columns - 1, pc + 1); nc++) {
+                  int n = nr * columns + nc;
+                  if (classes[n] != NONE && labels[n] < 0) {
+                     labels[n] = count;
+                     if (top == stack.length)
+                        stack = Arrays.copyOf(stack, 2 * top);
+                     stack[top++] = n;
+                  }
+               }
+            }
+         }
+         componentSize[count] = members;
+         componentStrong[count] = hasStrong;
+         count++;
+      }
+      return count;
+   }
+
+
+   /***********************************************************************
+    * Union-find
+    ***********************************************************************/
+
+   private int add(int members, boolean hasStrong) {
+      if (globalComponents == parent.length) {
+         parent = Arrays.copyOf(parent, 2 * globalComponents);
+         size = Arrays.copyOf(size, 2 * globalComponents);
+         strong = Arrays.copyOf(strong, 2 * globalComponents);
+      }
+      int id = globalComponents++;
+      parent[id] = id;
+      size[id] = members;
+      strong[id] = hasStrong;
+      return id;
+   }
+
+   private int find(int id) {
+      int root = id;
+      while (parent[root] != root)
+         root = parent[root];
+      while (parent[id] != root) {
+         int next = parent[id];
+         parent[id] = root;
+         id = next;
+      }
+      return root;
+   }
+
+   private void union(int a, int b) {
+      a = find(a);
+      b = find(b);
+      if (a == b)
+         return;
+      if (size[a] > size[b]) {
+         int t = a;
+         a = b;
+         b = t;
+      }
+      parent[a] = b;
+      size[b] += size[a];
+      strong[b] |= strong[a];
+   }
+
+
+   /***********************************************************************
+    * Accessors
+    ***********************************************************************/
+
+   int getStripRows() {
+      return stripRows;
+   }
+
+   int getStrips() {
+      return strips;
+   }
+
+   long getNumEdgePixels() {
+      return numEdgePixels;
+   }
+
+   /**
+    * @return # of union-find entries, i.e. groups that touched a strip border
+    */
+   int getGlobalComponents() {
+      return globalComponents;
+   }
+}
@@ -0,0 +1,508 @@
+/**************************************************************************
+ * @tags edge detection, image analysis, computer vision
+ *
+ * PURPOSE: Edge detection on images too large to decode at once.
+ *
+ * OVERVIEW: The image is decoded tile by tile with TiledImageSource. Each
+ * tile is read together with a halo sized to the kernel footprint plus one
+ * pixel for non-maximum suppression, so every pixel sees exactly the
+ * neighbors it would see in the whole image, and the tile edge maps are
+ * stitched into one. Results are identical to whole-image processing:
+ *
+ *    Sobel, Prewitt, Roberts Cross
+ *       pass 1: sum gradient magnitudes over all tiles (global mean threshold)
+ *       pass 2: gradient and non-maximum suppression per tile with halo,
+ *               one band of tiles at a time
+ *       Each pass decodes the image once, top to bottom, in full-width bands
+ *       (TiledImageSource.readRows()); tiles are cut out of the current band
+ *       and the halo rows below it are carried into the next one.
+ *
+ *    Canny (explicit thresholds only)
+ *       Canny suppresses non-maxima in place, in raster order, so the image
+ *       is read in full-width strips, top to bottom, and pushed row by row
+ *       through EdgeDetectorEngine's fused RowStream. StripHysteresis keeps
+ *       the weak/strong classes of one strip, spills the rest to a scratch
+ *       file and links groups across strip borders.
+ *
+ * Each finished band or strip is packed at one bit per pixel and handed to
+ * the output: an in-memory PackedEdgeMap (rows * columns / 8 bytes) or, with
+ * output(), an EdgeMapFile on disk. Apart from the output, heap use is about
+ * 9 bytes per pixel of a band of tileSize full-width rows (decoded and gray
+ * rows, edges) plus 30 bytes per pixel of a tile (Sobel, Prewitt, Roberts
+ * Cross), or about 16 bytes per pixel of a strip of tileSize * width (Canny).
+ * Only file output keeps the heap independent of the image size; getEdges()
+ * unpacks to one byte per pixel.
+ *
+ * Decoding cost depends on the format: non-interlaced PNG and sequential
+ * JPEG are decoded once per pass, tiled images tile by tile. Other formats
+ * are read one band per region; readers that start from the top of the file
+ * for every region (interlaced PNG, progressive JPEG, GIF) then cost about
+ * (image height / tileSize) / 2 full decodes per pass.
+ **************************************************************************/
+
+package edgedetector.detectors;
+
+import edgedetector.grayscale.TiledImageSource;
+import edgedetector.imagederivatives.ConvolutionKernel;
+import edgedetector.imagederivatives.ImageConvolution;
+import edgedetector.util.EdgeMapFile;
+import edgedetector.util.Hypotenuse;
+import edgedetector.util.NonMaximumSuppression;
+import edgedetector.util.PackedEdgeMap;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class TiledEdgeDetector {
+
+   /***********************************************************************
+    * Static fields
+    **********************************************************************/
+
+   // hysteresis classes of a pixel (CannyEdgeDetector, EdgePipeline, StripHysteresis)
+   static final byte NONE = 0;
+   static final byte WEAK = 1;
+   static final byte STRONG = 2;
+   static final byte VISITED = 4;
+
+   // rows of the original image lost to Canny's convolutions (5x5 Gaussian, then 3x3 Sobel)
+   private static final int CANNY_BORDER = ConvolutionKernel.GAUSSIAN_KERNEL.length - 1
+                                           + CannyEdgeDetector.getX_KERNEL().length - 1;
+
+
+   /***********************************************************************
+    * Fields
+    **********************************************************************/
+
+   // final answer, unless it went to a file
+   private PackedEdgeMap edgeMap;
+   private String edgeMapPath;
+
+   // edgeMap unpacked on demand: [i][j] is true iff pixel is part of edge
+   private boolean[][] edges;
+
+   private long numEdgePixels;
+
+   // threshold on gradient magnitude found in pass 1 (Sobel, Prewitt, Roberts Cross only)
+   private int threshold;
+
+   // dimensions of edges[][]; smaller than original image because of image convolution
+   private int rows;
+   private int columns;
+
+   // number of regions decoded from the image file
+   private int tilesDecoded;
+
+
+   /***********************************************************************
+    * Constructor
+    **********************************************************************/
+
+   /**
+    * All work is done in constructor.
+    * @param builder
+    * @throws IOException if the image cannot be decoded
+    */
+   private TiledEdgeDetector(Builder builder) throws IOException {
+      try (TiledImageSource source = new TiledImageSource(builder.filePath)) {
+         int border = builder.canny ? CANNY_BORDER : builder.operator.getXkernel().length - 1;
+         rows = source.getHeight() - border;
+         columns = source.getWidth() - border;
+         if (rows <= 0 || columns <= 0)
+            throw new IllegalArgumentException("Image smaller than the convolution kernels");
+
+         edgeMapPath = builder.edgeMapPath;
+         if (edgeMapPath == null) {
+            edgeMap = new PackedEdgeMap(rows, columns);
+            detect(source, builder, PackedRowSink.of(edgeMap));
+            return;
+         }
+         EdgeMapFile.createPacked(edgeMapPath, rows, columns);
+         try (FileChannel out = FileChannel.open(Paths.get(edgeMapPath), StandardOpenOption.WRITE)) {
+            detect(source, builder, PackedRowSink.of(out, columns));
+         }
+      }
+   }
+
+   private void detect(TiledImageSource source, Builder builder, PackedRowSink out) throws IOException {
+      if (builder.canny)
+         findCannyEdges(source, builder, out);
+      else
+         findGaussianEdges(source, builder, out);
+   }
+
+   /**
+    * Builder class for constructing TiledEdgeDetector objects.
+    */
+   public static class Builder {
+
+      // required parameters
+      private String filePath;
+
+      // optional parameters (default values given)
+      private EdgeOperator operator = EdgeOperator.SOBEL;
+      private boolean canny = false;
+      private int lowThreshold;
+      private int highThreshold;
+      private int minEdgeSize = 0;
+      private boolean L1norm = false;
+      private int tileSize = 1024;
+      private String edgeMapPath = null;
+      private Path scratchDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+
+      /**
+       * @param filePath path to image
+       */
+      public Builder(String filePath) {
+         this.filePath = filePath;
+      }
+
+      /**
+       * Detect edges like the GaussianEdgeDetector subclass using this operator.
+       * @param operator
+       * @return
+       */
+      public Builder operator(EdgeOperator operator) {
+         this.operator = operator;
+         this.canny = false;
+         return this;
+      }
+
+      /**
+       * Detect edges like CannyEdgeDetector with these thresholds.
+       * @param lowThreshold
+       * @param highThreshold
+       * @return
+       */
+      public Builder canny(int lowThreshold, int highThreshold) {
+         if (lowThreshold > highThreshold || lowThreshold < 0 || highThreshold > 255)
+            throw new IllegalArgumentException("Invalid threshold values");
+         this.canny = true;
+         this.lowThreshold = lowThreshold;
+         this.highThreshold = highThreshold;
+         return this;
+      }
+
+      /**
+       * Minimum number of pixels an edge must contain to be kept (Canny only).
+       * @param minEdgeSize
+       * @return
+       */
+      public Builder minEdgeSize(int minEdgeSize) {
+         this.minEdgeSize = minEdgeSize;
+         return this;
+      }
+
+      public Builder L1norm(boolean L1norm) {
+         this.L1norm = L1norm;
+         return this;
+      }
+
+      /**
+       * Side of a square tile (Sobel, Prewitt, Roberts Cross), in output
+       * pixels excluding the halo, or height of a full-width strip (Canny).
+       * @param tileSize
+       * @return
+       */
+      public Builder tileSize(int tileSize) {
+         if (tileSize < 1)
+            throw new IllegalArgumentException("Invalid tile size");
+         this.tileSize = tileSize;
+         return this;
+      }
+
+      /**
+       * Write the edges to this EdgeMapFile (packed) instead of keeping them
+       * on the heap; getEdges() is then unavailable.
+       * @param edgeMapPath
+       * @return
+       */
+      public Builder output(String edgeMapPath) {
+         this.edgeMapPath = edgeMapPath;
+         return this;
+      }
+
+      /**
+       * Directory of the scratch file with the Canny hysteresis classes (one
+       * byte per pixel, deleted afterwards). Defaults to java.io.tmpdir.
+       * @param scratchDirectory
+       * @return
+       */
+      public Builder scratchDirectory(String scratchDirectory) {
+         this.scratchDirectory = Paths.get(scratchDirectory);
+         return this;
+      }
+
+      public TiledEdgeDetector build() throws IOException {
+         return new TiledEdgeDetector(this);
+      }
+   }
+
+
+   /***********************************************************************
+    * Sobel, Prewitt, Roberts Cross
+    ***********************************************************************/
+
+   private void findGaussianEdges(TiledImageSource source, Builder builder, PackedRowSink out) throws IOException {
+      double[][] xKernel = builder.operator.getXkernel();
+      double[][] yKernel = builder.operator.getYkernel();
+      int m = xKernel.length;
+      int n = xKernel[0].length;
+      int tile = builder.tileSize;
+
+      // pass 1: threshold is the mean gradient magnitude over the whole image
+      long[] sum = {0};
+      read(source, tile, m - 1, 0, (r0, r1, y0, window) -> {
+         for (int c0 = 0; c0 < columns; c0 += tile) {
+            int c1 = Math.min(columns, c0 + tile);
+            int[][] image = cut(window, y0, c0, r0, c1 - c0 + n - 1, r1 - r0 + m - 1);
+            int[][] mag = new int[r1 - r0][c1 - c0];
+            gradient(image, xKernel, yKernel, builder.L1norm, mag, null);
+            for (int[] row : mag)
+               for (int value : row)
+                  sum[0] += value;
+         }
+      });
+      threshold = (int) (sum[0] / ((double) rows * columns));
+
+      // pass 2: non-maximum suppression needs one pixel of magnitudes around the tile
+      read(source, tile, m - 1, 1, (r0, r1, y0, window) -> {
+         boolean[] band = new boolean[(r1 - r0) * columns];
+         for (int c0 = 0; c0 < columns; c0 += tile) {
+            int c1 = Math.min(columns, c0 + tile);
+            int hr0 = Math.max(0, r0 - 1);
+            int hc0 = Math.max(0, c0 - 1);
+            int hr1 = Math.min(rows, r1 + 1);
+            int hc1 = Math.min(columns, c1 + 1);
+
+            int[][] image = cut(window, y0, hc0, hr0, hc1 - hc0 + n - 1, hr1 - hr0 + m - 1);
+            int[][] mag = new int[hr1 - hr0][hc1 - hc0];
+            NonMaximumSuppression.EdgeDirection[][] angle = new NonMaximumSuppression.EdgeDirection[hr1 - hr0][hc1 - hc0];
+            gradient(image, xKernel, yKernel, builder.L1norm, mag, angle);
+
+            // halo is clipped at the image border, so local bounds checks match global ones
+            for (int i = r0; i < r1; i++) {
+               for (int j = c0; j < c1; j++) {
+                  int li = i - hr0;
+                  int lj = j - hc0;
+                  band[(i - r0) * columns + j] = (mag[li][lj] < threshold) ? false
+                          : NonMaximumSuppression.nonMaximumSuppression(mag, angle[li][lj], li, lj);
+               }
+            }
+         }
+
+         PackedEdgeMap packed = new PackedEdgeMap(band, r1 - r0, columns);
+         for (int i = r0; i < r1; i++)
+            out.put(i, packed.getBits(), (i - r0) * packed.getStride());
+         numEdgePixels += packed.countEdges();
+      });
+   }
+
+
+   /***********************************************************************
+    * Canny
+    ***********************************************************************/
+
+   private void findCannyEdges(TiledImageSource source, Builder builder, PackedRowSink out) throws IOException {
+      try (StripHysteresis hysteresis = new StripHysteresis(rows, columns, builder.lowThreshold,
+              builder.highThreshold, builder.minEdgeSize, builder.tileSize, builder.scratchDirectory)) {
+         tilesDecoded += hysteresis.read(source, builder.L1norm);
+         numEdgePixels = hysteresis.write(out);
+      }
+   }
+
+   /**
+    * Keeps every 8-connected group of weak and strong pixels that contains
+    * a strong pixel and at least minEdgeSize pixels. Iterative, so long edges
+    * cannot overflow the call stack.
+    * @param classes NONE, WEAK or STRONG per pixel; pixels that were traced are marked VISITED
+    * @param minEdgeSize
+    * @param edges receives true for every kept pixel
+    */
+   static void traceEdges(byte[][] classes, int minEdgeSize, boolean[][] edges) {
+      int rows = classes.length;
+      int columns = (rows == 0) ? 0 : classes[0].length;
+      int[] stack = new int[64];
+      int[] component = new int[64];
+
+      for (int r = 0; r < rows; r++) {
+         for (int c = 0; c < columns; c++) {
+            if (classes[r][c] != STRONG)
+               continue;
+
+            int size = 0;
+            int top = 0;
+            stack[top++] = r * columns + c;
+            classes[r][c] |= VISITED;
+
+            while (top > 0) {
+               int index = stack[--top];
+               if (size == component.length)
+                  component = Arrays.copyOf(component, 2 * size);
+               component[size++] = index;
+
+               int pr = index / columns;
+               int pc = index - pr * columns;
+               for (int dr = -1; dr <= 1; dr++) {
+                  for (int dc = -1; dc <= 1; dc++) {
+                     int nr = pr + dr;
+                     int nc = pc + dc;
+                     if (nr < 0 || nr >= rows || nc < 0 || nc >= columns)
+                        continue;
+                     byte cls = classes[nr][nc];
+                     if (cls == WEAK || cls == STRONG) {
+                        classes[nr][nc] = (byte) (cls | VISITED);
+                        if (top == stack.length)
+                           stack = Arrays.copyOf(stack, 2 * top);
+                        stack[top++] = nr * columns + nc;
+                     }
+                  }
+               }
+            }
+
+            if (size >= minEdgeSize)
+               for (int i = 0; i < size; i++)
+                  edges[component[i] / columns][component[i] % columns] = true;
+         }
+      }
+   }
+
+
+   /***********************************************************************
+    * Helper methods
+    ***********************************************************************/
+
+   /**
+    * Band of output rows [r0, r1) with the image rows it needs.
+    */
+   private interface Band {
+
+      /**
+       * @param window image rows from y0 on
+       */
+      void process(int r0, int r1, int y0, List<int[]> window) throws IOException;
+   }
+
+   /**
+    * Decodes the image once, top to bottom, and hands every band of tile
+    * output rows to band as soon as the image rows it needs have arrived:
+    * from halo rows above the band to border + halo rows below it, clipped
+    * at the image. Rows the next band still needs are carried over.
+    */
+   private void read(TiledImageSource source, int tile, int border, int halo, Band band) throws IOException {
+      int height = rows + border;
+      List<int[]> window = new ArrayList<>();
+      int[] next = {0, 0}; // first output row of the next band, first image row of window
+
+      tilesDecoded += source.readRows(tile, (y, gray) -> {
+         window.addAll(Arrays.asList(gray));
+         while (next[0] < rows) {
+            int r0 = next[0];
+            int r1 = Math.min(rows, r0 + tile);
+            if (next[1] + window.size() < Math.min(height, r1 + border + halo))
+               return;
+            band.process(r0, r1, next[1], window);
+
+            int keep = Math.max(0, r1 - halo);
+            window.subList(0, keep - next[1]).clear();
+            next[0] = r1;
+            next[1] = keep;
+         }
+      });
+      if (next[0] < rows)
+         throw new IOException("Image ended early");
+   }
+
+   /**
+    * @return image rows [y, y + h) and columns [x, x + w) of window, which starts at image row y0
+    */
+   private static int[][] cut(List<int[]> window, int y0, int x, int y, int w, int h) {
+      int[][] image = new int[h][];
+      for (int i = 0; i < h; i++)
+         image[i] = Arrays.copyOfRange(window.get(y - y0 + i), x, x + w);
+      return image;
+   }
+
+   /**
+    * Fills mag (and angle, if not null) with the gradient of image, computed
+    * exactly as in GaussianEdgeDetector and CannyEdgeDetector.
+    */
+   private static void gradient(int[][] image, double[][] xKernel, double[][] yKernel, boolean L1norm,
+                                int[][] mag, NonMaximumSuppression.EdgeDirection[][] angle) {
+      int[][] gx = new ImageConvolution(image, xKernel).getConvolvedImage();
+      int[][] gy = new ImageConvolution(image, yKernel).getConvolvedImage();
+
+      for (int i = 0; i < mag.length; i++) {
+         for (int j = 0; j < mag[i].length; j++) {
+            mag[i][j] = (int) (L1norm ? Hypotenuse.L1(gx[i][j], gy[i][j]) : Hypotenuse.L2(gx[i][j], gy[i][j]));
+            if (angle != null)
+               angle[i][j] = NonMaximumSuppression.EdgeDirection.getDirection(gx[i][j], gy[i][j]);
+         }
+      }
+   }
+
+
+   /***********************************************************************
+    * Accessors
+    ***********************************************************************/
+
+   /**
+    * @return stitched edges of the whole image, unpacked on first use
+    * @throws IllegalStateException if the edges were written to a file
+    */
+   public boolean[][] getEdges() {
+      if (edgeMap == null)
+         throw new IllegalStateException("Edges were written to " + edgeMapPath);
+      if (edges == null)
+         edges = edgeMap.toBooleans();
+      return edges;
+   }
+
+   /**
+    * @return stitched edges of the whole image, one bit per pixel, or null if
+    *         they were written to a file
+    */
+   public PackedEdgeMap getEdgeMap() {
+      return edgeMap;
+   }
+
+   public long getNumEdgePixels() {
+      return numEdgePixels;
+   }
+
+   /**
+    * @return threshold compared with gradient magnitudes (Sobel, Prewitt, Roberts Cross)
+    */
+   public int getThreshold() {
+      return threshold;
+   }
+
+   /**
+    * @return # of rows in edges image
+    */
+   public int getRows() {
+      return rows;
+   }
+
+   /**
+    * @return # of columns in edges image
+    */
+   public int getColumns() {
+      return columns;
+   }
+
+   /**
+    * @return # of reads from the image file (one per pass when the image is
+    *         decoded in one go, see TiledImageSource.readRows())
+    */
+   public int getTilesDecoded() {
+      return tilesDecoded;
+   }
+}
@@ -3,23 +3,298 @@ package edgedetector.grayscale;
 
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.stream.IntStream;
 
 public class Grayscale {
+
+    // rows converted by one task when converting in parallel
+    private static final int BLOCK_ROWS = 64;
+
     public static int[][] imgToGrayPixels(BufferedImage image) {
+        return imgToGrayPixels(image, GrayscaleMode.AVERAGE);
+    }
+
+    public static int[][] imgToGrayPixels(BufferedImage image, GrayscaleMode mode) {
         int width = image.getWidth();
         int height = image.getHeight();
         int[][] grayPixels = new int[height][width];
 
+        RowConverter converter = RowConverter.of(image, mode);
         for (int y = 0; y < height; y++) {
+            converter.convert(y, grayPixels[y], 0);
+        }
+        return grayPixels;
+    }
+
+    /**
+     * Converts an image to a flat, row-major gray buffer: pixel (x, y) is at y * width + x.
+     */
+    public static int[] imgToGrayBuffer(BufferedImage image) {
+        return imgToGrayBuffer(image, false);
+    }
+
+    /**
+     * Converts an image to a flat, row-major gray buffer.
+     * @param parallel convert blocks of rows in parallel
+     */
+    public static int[] imgToGrayBuffer(BufferedImage image, boolean parallel) {
+        return imgToGrayBuffer(image, GrayscaleMode.AVERAGE, parallel);
+    }
+
+    /**
+     * Converts an image to a flat, row-major gray buffer.
+     * @param parallel convert blocks of rows in parallel
+     */
+    public static int[] imgToGrayBuffer(BufferedImage image, GrayscaleMode mode, boolean parallel) {
+        int[] gray = new int[image.getWidth() * image.getHeight()];
+        imgToGrayBuffer(image, gray, mode, parallel);
+        return gray;
+    }
+
+    /**
+     * Converts an image into a caller-provided flat, row-major gray buffer
+     * of at least width * height entries.
+     * @param parallel convert blocks of rows in parallel
+     */
+    public static void imgToGrayBuffer(BufferedImage image, int[] gray, boolean parallel) {
+        imgToGrayBuffer(image, gray, GrayscaleMode.AVERAGE, parallel);
+    }
+
+    /**
+     * Converts an image into a caller-provided flat, row-major gray buffer
+     * of at least width * height entries.
+     * @param parallel convert blocks of rows in parallel
+     */
+    public static void imgToGrayBuffer(BufferedImage image, int[] gray, GrayscaleMode mode, boolean parallel) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (gray.length < width * height)
+            throw new IllegalArgumentException("Gray buffer too small");
+
+        RowConverter converter = RowConverter.of(image, mode);
+        int blocks = (height + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        IntStream range = IntStream.range(0, blocks);
+        (parallel ? range.parallel() : range).forEach(block -> {
+            int end = Math.min(height, (block + 1) * BLOCK_ROWS);
+            for (int y = block * BLOCK_ROWS; y < end; y++) {
+                converter.convert(y, gray, y * width);
+            }
+        });
+    }
+
+    /**
+     * Converts one row of an image to gray. Reads the backing DataBuffer directly for
+     * the common image types and uses getRGB() for everything else; both give the
+     * same values. Stateless, so one converter can be shared by several threads.
+     *
+     * <P> The inner loops are straight-line fixed-point arithmetic over a row, with no
+     * branches or divides, so that the JIT can vectorize them (superword) and the
+     * conversion is limited by memory bandwidth.
+     */
+    private static abstract class RowConverter {
+        final int width;
+        final int wr, wg, wb, bias; // fixed-point weights of the mode
+
+        RowConverter(int width, GrayscaleMode mode) {
+            this.width = width;
+            this.wr = mode.red;
+            this.wg = mode.green;
+            this.wb = mode.blue;
+            this.bias = mode.bias;
+        }
+
+        abstract void convert(int y, int[] gray, int offset);
+
+        static RowConverter of(BufferedImage image, GrayscaleMode mode) {
+            Raster raster = image.getRaster();
+            DataBuffer buffer = raster.getDataBuffer();
+            int pixels = image.getWidth() * image.getHeight();
+
+            switch (image.getType()) {
+                case BufferedImage.TYPE_3BYTE_BGR:
+                    if (raster.getSampleModel() instanceof ComponentSampleModel && buffer instanceof DataBufferByte)
+                        return new InterleavedBytes(image, mode);
+                    break;
+                case BufferedImage.TYPE_INT_RGB:
+                case BufferedImage.TYPE_INT_ARGB:
+                    if (raster.getSampleModel() instanceof SinglePixelPackedSampleModel && buffer instanceof DataBufferInt)
+                        return new PackedInts(image, mode);
+                    break;
+                case BufferedImage.TYPE_BYTE_GRAY:
+                    if (raster.getSampleModel() instanceof ComponentSampleModel && buffer instanceof DataBufferByte)
+                        return new GrayLookup(image, mode, 8);
+                    break;
+                case BufferedImage.TYPE_USHORT_GRAY:
+                    // building the 65536-entry table costs more than converting a small image
+                    if (raster.getSampleModel() instanceof ComponentSampleModel && buffer instanceof DataBufferUShort
+                            && pixels >= (1 << 16))
+                        return new GrayLookup(image, mode, 16);
+                    break;
+                default:
+                    break;
+            }
+            return new ColorModelRows(image, mode);
+        }
+
+        int gray(int rgb) {
+            return (wr * ((rgb >> 16) & 0xff) + wg * ((rgb >> 8) & 0xff) + wb * (rgb & 0xff) + bias) >>> 16;
+        }
+    }
+
+    /**
+     * Any image type: bulk getRGB() one row at a time.
+     */
+    private static final class ColorModelRows extends RowConverter {
+        private final BufferedImage image;
+
+        ColorModelRows(BufferedImage image, GrayscaleMode mode) {
+            super(image.getWidth(), mode);
+            this.image = image;
+        }
+
+        @Override
+        void convert(int y, int[] gray, int offset) {
+            int[] rgb = image.getRGB(0, y, width, 1, null, 0, width);
             for (int x = 0; x < width; x++) {
-                int rgb = image.getRGB(x, y);
-                int r = (rgb >> 16) & 0xff;
-                int g = (rgb >> 8) & 0xff;
-                int b = (rgb) & 0xff;
-                int gray = (r + g + b) / 3; // Simple average to convert to grayscale
-                grayPixels[y][x] = gray;
+                gray[offset + x] = gray(rgb[x]);
+            }
+        }
+    }
+
+    /**
+     * TYPE_3BYTE_BGR: three interleaved bytes per pixel.
+     */
+    private static final class InterleavedBytes extends RowConverter {
+        private final byte[] data;
+        private final int base; // index of band 0 of pixel (0, 0)
+        private final int scanline;
+        private final int pixelStride;
+        private final int red, green, blue; // band offsets
+
+        InterleavedBytes(BufferedImage image, GrayscaleMode mode) {
+            super(image.getWidth(), mode);
+            Raster raster = image.getRaster();
+            ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+            DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            int[] bandOffsets = model.getBandOffsets();
+
+            this.data = buffer.getData();
+            this.scanline = model.getScanlineStride();
+            this.pixelStride = model.getPixelStride();
+            this.base = buffer.getOffset() - raster.getSampleModelTranslateY() * scanline
+                        - raster.getSampleModelTranslateX() * pixelStride;
+            this.red = bandOffsets[0];
+            this.green = bandOffsets[1];
+            this.blue = bandOffsets[2];
+        }
+
+        @Override
+        void convert(int y, int[] gray, int offset) {
+            int p = base + y * scanline;
+            for (int x = 0; x < width; x++, p += pixelStride) {
+                int r = data[p + red] & 0xff;
+                int g = data[p + green] & 0xff;
+                int b = data[p + blue] & 0xff;
+                gray[offset + x] = (wr * r + wg * g + wb * b + bias) >>> 16;
+            }
+        }
+    }
+
+    /**
+     * TYPE_INT_RGB and TYPE_INT_ARGB: one packed int per pixel, already in getRGB() layout.
+     */
+    private static final class PackedInts extends RowConverter {
+        private final int[] data;
+        private final int base;
+        private final int scanline;
+
+        PackedInts(BufferedImage image, GrayscaleMode mode) {
+            super(image.getWidth(), mode);
+            Raster raster = image.getRaster();
+            SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+
+            this.data = buffer.getData();
+            this.scanline = model.getScanlineStride();
+            this.base = buffer.getOffset() - raster.getSampleModelTranslateY() * scanline
+                        - raster.getSampleModelTranslateX();
+        }
+
+        @Override
+        void convert(int y, int[] gray, int offset) {
+            int p = base + y * scanline;
+            for (int x = 0; x < width; x++) {
+                int rgb = data[p + x];
+                gray[offset + x] = (wr * ((rgb >> 16) & 0xff) + wg * ((rgb >> 8) & 0xff) + wb * (rgb & 0xff) + bias) >>> 16;
+            }
+        }
+    }
+
+    /**
+     * TYPE_BYTE_GRAY and TYPE_USHORT_GRAY. getRGB() maps samples through the gray
+     * color space, so the sample -> gray table is built from the image's ColorModel.
+     */
+    private static final class GrayLookup extends RowConverter {
+        private final int[] lookup;
+        private final byte[] bytes; // 8-bit samples
+        private final short[] shorts; // 16-bit samples
+        private final int base;
+        private final int scanline;
+        private final int pixelStride;
+
+        GrayLookup(BufferedImage image, GrayscaleMode mode, int bits) {
+            super(image.getWidth(), mode);
+            Raster raster = image.getRaster();
+            ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+            DataBuffer buffer = raster.getDataBuffer();
+            ColorModel colorModel = image.getColorModel();
+
+            this.scanline = model.getScanlineStride();
+            this.pixelStride = model.getPixelStride();
+            this.base = buffer.getOffset() + model.getBandOffsets()[0]
+                        - raster.getSampleModelTranslateY() * scanline
+                        - raster.getSampleModelTranslateX() * pixelStride;
+
+            this.lookup = new int[1 << bits];
+            if (bits == 8) {
+                this.bytes = ((DataBufferByte) buffer).getData();
+                this.shorts = null;
+                byte[] sample = new byte[1];
+                for (int v = 0; v < lookup.length; v++) {
+                    sample[0] = (byte) v;
+                    lookup[v] = gray(colorModel.getRGB(sample));
+                }
+            } else {
+                this.bytes = null;
+                this.shorts = ((DataBufferUShort) buffer).getData();
+                short[] sample = new short[1];
+                for (int v = 0; v < lookup.length; v++) {
+                    sample[0] = (short) v;
+                    lookup[v] = gray(colorModel.getRGB(sample));
+                }
+            }
+        }
+
+        @Override
+        void convert(int y, int[] gray, int offset) {
+            int p = base + y * scanline;
+            if (bytes != null) {
+                for (int x = 0; x < width; x++, p += pixelStride) {
+                    gray[offset + x] = lookup[bytes[p] & 0xff];
+                }
+            } else {
+                for (int x = 0; x < width; x++, p += pixelStride) {
+                    gray[offset + x] = lookup[shorts[p] & 0xffff];
+                }
             }
         }
-        return grayPixels;
     }
 }
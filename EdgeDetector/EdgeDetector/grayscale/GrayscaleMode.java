@@ -0,0 +1,39 @@
+package edgedetector.grayscale;
+
+/**
+ * How Grayscale combines red, green and blue into one intensity.
+ *
+ * <P> Weights are 16-bit fixed point (65536 = 1.0), so a conversion is three
+ * multiplies, two adds and a shift: gray = (wr * r + wg * g + wb * b + bias) >>> 16.
+ */
+public enum GrayscaleMode {
+    // (r + g + b) / 3, rounded down; 21846 / 65536 is close enough to 1/3 to be exact for 0..765
+    AVERAGE(21846, 21846, 21846, 0),
+    // ITU-R BT.601 luma: 0.299 R + 0.587 G + 0.114 B
+    BT601(19595, 38470, 7471, 1 << 15),
+    // ITU-R BT.709 luma: 0.2126 R + 0.7152 G + 0.0722 B
+    BT709(13933, 46871, 4732, 1 << 15),
+    RED(1 << 16, 0, 0, 0),
+    GREEN(0, 1 << 16, 0, 0),
+    BLUE(0, 0, 1 << 16, 0);
+
+    final int red;
+    final int green;
+    final int blue;
+    final int bias; // 1 << 15 rounds to nearest, 0 rounds down
+
+    GrayscaleMode(int red, int green, int blue, int bias) {
+        this.red = red;
+        this.green = green;
+        this.blue = blue;
+        this.bias = bias;
+    }
+
+    /**
+     * @param rgb packed 0xAARRGGBB pixel, as returned by BufferedImage.getRGB()
+     * @return gray intensity, 0 to 255
+     */
+    public int gray(int rgb) {
+        return (red * ((rgb >> 16) & 0xff) + green * ((rgb >> 8) & 0xff) + blue * (rgb & 0xff) + bias) >>> 16;
+    }
+}
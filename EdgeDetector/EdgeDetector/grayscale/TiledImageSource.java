@@ -0,0 +1,346 @@
+package edgedetector.grayscale;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Reads gray pixels of rectangular regions of an image file without decoding
+ * the whole image, using ImageReadParam.setSourceRegion(). Only the requested
+ * region is held in memory. Not thread-safe.
+ *
+ * <P> The PNG and JPEG readers decode from the top of the file for every
+ * region, so reading an image as many regions costs far more than one
+ * decode. readRows() reads it top to bottom in full-width bands instead,
+ * decoding every row once:
+ * <UL>
+ * <LI> tiled images (e.g. tiled TIFF): one tile row at a time with readTile()
+ * <LI> non-interlaced PNG and sequential JPEG: one decode into a destination
+ *      that keeps a single band of rows and hands it on when the reader
+ *      moves past it
+ * <LI> anything else: one region per band, which costs about bands / 2 full
+ *      decodes for readers that start from the top (interlaced PNG and
+ *      progressive JPEG even decode every pass of the whole image per band)
+ * </UL>
+ */
+public class TiledImageSource implements Closeable {
+
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final GrayscaleMode mode;
+    private final int width;
+    private final int height;
+
+    public TiledImageSource(String filePath) throws IOException {
+        this(filePath, GrayscaleMode.AVERAGE);
+    }
+
+    public TiledImageSource(String filePath, GrayscaleMode mode) throws IOException {
+        this.mode = mode;
+        this.input = ImageIO.createImageInputStream(new File(filePath));
+        if (input == null)
+            throw new IOException("Cannot open " + filePath);
+
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("No image reader for " + filePath);
+        }
+        this.reader = readers.next();
+        reader.setInput(input, true, true);
+        this.width = reader.getWidth(0);
+        this.height = reader.getHeight(0);
+    }
+
+    /**
+     * Decodes the region [x, x + w) x [y, y + h) and converts it to gray.
+     * @return gray pixels, indexed [row][column] relative to (x, y)
+     */
+    public int[][] readGray(int x, int y, int w, int h) throws IOException {
+        if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > width || y + h > height)
+            throw new IllegalArgumentException("Region outside of image");
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(x, y, w, h));
+        BufferedImage region = reader.read(0, param);
+        return Grayscale.imgToGrayPixels(region, mode);
+    }
+
+    /**
+     * Receives the gray rows of an image, top to bottom.
+     */
+    public interface BandConsumer {
+
+        /**
+         * @param y image row of gray[0]
+         * @param gray full-width gray rows; new arrays, so they may be kept
+         */
+        void accept(int y, int[][] gray) throws IOException;
+    }
+
+    /**
+     * Decodes the whole image once, top to bottom, and hands it to consumer in
+     * full-width bands. Bands have bandRows rows (the last one fewer), except
+     * for tiled images, whose bands are one row of tiles.
+     * @return # of reads from the image file
+     */
+    public int readRows(int bandRows, BandConsumer consumer) throws IOException {
+        if (bandRows < 1)
+            throw new IllegalArgumentException("Invalid band height");
+        if (reader.isImageTiled(0))
+            return readTileRows(consumer);
+        if (decodesInOrder()) {
+            BandRaster band = null;
+            try {
+                ImageTypeSpecifier type = reader.getImageTypes(0).next();
+                band = new BandRaster(type, width, height, Math.min(bandRows, height), mode, consumer);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(band.image);
+                reader.read(0, param);
+                band.flush(height);
+                return 1;
+            } catch (IOException | RuntimeException e) {
+                // the consumer's own failure, wrapped by the reader or not
+                for (Throwable t = e; t != null; t = t.getCause()) {
+                    if (t instanceof ConsumerFailure) {
+                        Throwable cause = t.getCause();
+                        if (cause instanceof IOException)
+                            throw (IOException) cause;
+                        if (cause instanceof RuntimeException)
+                            throw (RuntimeException) cause;
+                        throw (Error) cause;
+                    }
+                }
+                // a reader that bypasses the raster methods fails on the first row
+                if (band != null && band.y0 > 0)
+                    throw e;
+            }
+        }
+
+        int reads = 0;
+        for (int y = 0; y < height; y += bandRows) {
+            consumer.accept(y, readGray(0, y, width, Math.min(bandRows, height - y)));
+            reads++;
+        }
+        return reads;
+    }
+
+    private int readTileRows(BandConsumer consumer) throws IOException {
+        int tileWidth = reader.getTileWidth(0);
+        int tileHeight = reader.getTileHeight(0);
+        int reads = 0;
+        for (int ty = 0; ty * tileHeight < height; ty++) {
+            int y = ty * tileHeight;
+            BufferedImage band = null;
+            for (int tx = 0; tx * tileWidth < width; tx++) {
+                BufferedImage tile = reader.readTile(0, tx, ty);
+                reads++;
+                if (band == null) {
+                    ColorModel colorModel = tile.getColorModel();
+                    WritableRaster raster = tile.getRaster().createCompatibleWritableRaster(width,
+                            Math.min(tileHeight, height - y));
+                    band = new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+                }
+                Raster pixels = tile.getRaster();
+                band.getRaster().setRect(tx * tileWidth - pixels.getMinX(), -pixels.getMinY(), pixels);
+            }
+            consumer.accept(y, Grayscale.imgToGrayPixels(band, mode));
+        }
+        return reads;
+    }
+
+    /**
+     * @return true iff the reader decodes the image once, row after row
+     *         (non-interlaced PNG, sequential JPEG)
+     */
+    private boolean decodesInOrder() throws IOException {
+        IIOMetadata metadata = reader.getImageMetadata(0);
+        if (metadata == null || metadata.getNativeMetadataFormatName() == null)
+            return false;
+        String format = metadata.getNativeMetadataFormatName();
+        if (format.equals("javax_imageio_png_1.0"))
+            return "none".equals(attribute(metadata.getAsTree(format), "IHDR", "interlaceMethod"));
+        if (format.equals("javax_imageio_jpeg_image_1.0")) {
+            String process = attribute(metadata.getAsTree(format), "sof", "process");
+            return "0".equals(process) || "1".equals(process); // baseline or extended sequential
+        }
+        return false;
+    }
+
+    /**
+     * @return attribute of the first element called name below node, or null
+     */
+    private static String attribute(Node node, String name, String attribute) {
+        if (node.getNodeName().equals(name)) {
+            NamedNodeMap attributes = node.getAttributes();
+            Node value = (attributes == null) ? null : attributes.getNamedItem(attribute);
+            return (value == null) ? null : value.getNodeValue();
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            String value = attribute(child, name, attribute);
+            if (value != null)
+                return value;
+        }
+        return null;
+    }
+
+    /**
+     * Destination raster of the whole image that only stores one band of rows.
+     * Readers that decode in order write rows through setRect() (JPEG) or
+     * setPixel() (PNG); once a write lands below the band, the band is
+     * complete and goes to the consumer. Any other write method hits the
+     * one-band data buffer and fails, and readRows() falls back to regions.
+     */
+    private static final class BandRaster extends WritableRaster {
+
+        private final WritableRaster rows; // rows [y0, y0 + rows.getHeight())
+        private final BufferedImage band;
+        private final BufferedImage image;
+        private final GrayscaleMode mode;
+        private final BandConsumer consumer;
+        private int y0 = 0;
+
+        private BandRaster(ImageTypeSpecifier type, int width, int height, int bandRows, GrayscaleMode mode,
+                           BandConsumer consumer) {
+            this(type.getSampleModel(width, height), type.createBufferedImage(width, bandRows), type.getColorModel(),
+                 mode, consumer);
+        }
+
+        private BandRaster(SampleModel sampleModel, BufferedImage band, ColorModel colorModel, GrayscaleMode mode,
+                           BandConsumer consumer) {
+            super(sampleModel, band.getRaster().getDataBuffer(), new Point(0, 0));
+            this.rows = band.getRaster();
+            this.band = band;
+            this.mode = mode;
+            this.consumer = consumer;
+            this.image = new BufferedImage(colorModel, this, colorModel.isAlphaPremultiplied(), null);
+        }
+
+        /**
+         * Hands on every complete band above row y.
+         */
+        private void flush(int y) {
+            int width = getWidth();
+            int height = getHeight();
+            int bandRows = rows.getHeight();
+            while (y0 < height && (y >= y0 + bandRows || y >= height)) {
+                int h = Math.min(bandRows, height - y0);
+                BufferedImage done = (h == bandRows) ? band : band.getSubimage(0, 0, width, h);
+                try {
+                    consumer.accept(y0, Grayscale.imgToGrayPixels(done, mode));
+                } catch (IOException | RuntimeException | Error e) {
+                    throw new ConsumerFailure(e);
+                }
+                y0 += bandRows;
+            }
+        }
+
+        /**
+         * @return row y within the band
+         */
+        private int row(int y, int h) {
+            if (y < y0)
+                throw new IllegalStateException("Rows decoded out of order");
+            flush(y);
+            if (y + h > y0 + rows.getHeight())
+                throw new IllegalStateException("Write spans several bands");
+            return y - y0;
+        }
+
+        @Override
+        public void setRect(int dx, int dy, Raster srcRaster) {
+            rows.setRect(dx, row(dy + srcRaster.getMinY(), srcRaster.getHeight()) - srcRaster.getMinY(), srcRaster);
+        }
+
+        @Override
+        public void setPixel(int x, int y, int[] iArray) {
+            rows.setPixel(x, row(y, 1), iArray);
+        }
+
+        @Override
+        public void setPixels(int x, int y, int w, int h, int[] iArray) {
+            rows.setPixels(x, row(y, h), w, h, iArray);
+        }
+
+        @Override
+        public void setSample(int x, int y, int b, int s) {
+            rows.setSample(x, row(y, 1), b, s);
+        }
+
+        @Override
+        public void setDataElements(int x, int y, Object inData) {
+            rows.setDataElements(x, row(y, 1), inData);
+        }
+
+        @Override
+        public void setDataElements(int x, int y, int w, int h, Object inData) {
+            rows.setDataElements(x, row(y, h), w, h, inData);
+        }
+    }
+
+    /**
+     * Carries a failure of the consumer through the image reader.
+     */
+    private static final class ConsumerFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private ConsumerFailure(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Decodes every step-th pixel of every step-th row and converts them to gray.
+     * Pixel [i][j] of the result is pixel (j * step, i * step) of the image.
+     */
+    public int[][] readGraySubsampled(int step) throws IOException {
+        if (step < 1)
+            throw new IllegalArgumentException("Invalid subsampling step");
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(step, step, 0, 0);
+        BufferedImage preview = reader.read(0, param);
+        return Grayscale.imgToGrayPixels(preview, mode);
+    }
+
+    /**
+     * @return smallest subsampling step that makes neither side longer than previewSize
+     */
+    public int subsamplingFor(int previewSize) {
+        if (previewSize < 1)
+            throw new IllegalArgumentException("Invalid preview size");
+        int longest = Math.max(width, height);
+        return Math.max(1, (longest + previewSize - 1) / previewSize);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.dispose();
+        input.close();
+    }
+}
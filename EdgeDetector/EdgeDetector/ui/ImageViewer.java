@@ -3,9 +3,20 @@ package edgedetector.ui;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+import edgedetector.util.PackedEdgeMap;
+import edgedetector.util.Threshold;
 
 public class ImageViewer {
 
+    // black = 0, white = 1, as in every TYPE_BYTE_BINARY image
+    private static final IndexColorModel BINARY_COLORS =
+            (IndexColorModel) new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_BINARY).getColorModel();
+
     /**
      * Displays multiple images in a grid layout.
      *
@@ -34,23 +45,26 @@ public class ImageViewer {
     }
 
     /**
-     * Converts a boolean 2D array to a BufferedImage.
+     * Converts a boolean 2D array to a BufferedImage. Eight pixels are packed
+     * into each byte of the image's DataBufferByte directly.
      *
      * @param edges 2D boolean array where true represents an edge.
-     * @return BufferedImage representation of the edges.
+     * @return TYPE_BYTE_BINARY image, white for edges and black for non-edges.
      */
     public static BufferedImage createImageFromPixels(boolean[][] edges) {
-        int rows = edges.length;
-        int cols = edges[0].length;
-        BufferedImage image = new BufferedImage(cols, rows, BufferedImage.TYPE_BYTE_BINARY);
-
-        for (int r = 0; r < rows; r++) {
-            for (int c = 0; c < cols; c++) {
-                // Set pixel color based on whether it's an edge or not
-                int color = edges[r][c] ? 0xFFFFFF : 0x000000; // White for edges, black for non-edges
-                image.setRGB(c, r, color);
-            }
-        }
-        return image;
+        return Threshold.applyThreshold(edges);
+    }
+
+    /**
+     * Wraps a bit-packed edge map in a BufferedImage without copying it, so later
+     * changes to the edge map show in the image and vice versa.
+     *
+     * @param edges packed edges, in the TYPE_BYTE_BINARY layout
+     * @return TYPE_BYTE_BINARY image, white for edges and black for non-edges.
+     */
+    public static BufferedImage createImageFromPixels(PackedEdgeMap edges) {
+        DataBufferByte buffer = new DataBufferByte(edges.getBits(), edges.getRows() * edges.getStride());
+        WritableRaster raster = Raster.createPackedRaster(buffer, edges.getColumns(), edges.getRows(), 1, null);
+        return new BufferedImage(BINARY_COLORS, raster, false, null);
     }
 }
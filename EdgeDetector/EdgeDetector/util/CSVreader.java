@@ -10,6 +10,16 @@ import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 public class CSVreader {
 
@@ -74,6 +84,332 @@ public class CSVreader {
       return arr;
    }
 
+   /**
+    * Reads a CSV file of doubles in chunks of at most chunkRows rows, without
+    * knowing its dimensions up front. The number of columns is taken from the
+    * first line; every chunk is a fresh array that the consumer may keep.
+    *
+    * @param inFile    The path to the CSV file
+    * @param chunkRows Maximum number of rows per chunk
+    * @param consumer  Receives each chunk, in file order
+    * @return Total number of rows read
+    * @throws IOException if the file cannot be read
+    * @throws IllegalArgumentException if a line has the wrong number of columns or an invalid number
+    */
+   public static long readChunks(String inFile, int chunkRows, Consumer<double[][]> consumer) throws IOException {
+      if (chunkRows <= 0)
+         throw new IllegalArgumentException("Invalid chunk size");
+
+      long total = 0;
+      try (BufferedReader bf = new BufferedReader(new FileReader(inFile))) {
+         double[][] chunk = null;
+         int columns = -1;
+         int r = 0;
+         String line;
+
+         while ((line = bf.readLine()) != null) {
+            total++;
+            String[] x = line.split(",");
+
+            if (columns < 0)
+               columns = x.length;
+            else if (x.length != columns)
+               throw new IllegalArgumentException("File has invalid dimensions (columns) at line " + total
+                                                  + ". Expected: " + columns + ", but got: " + x.length);
+
+            if (chunk == null)
+               chunk = new double[chunkRows][columns];
+
+            try {
+               for (int c = 0; c < columns; c++)
+                  chunk[r][c] = Double.parseDouble(x[c]);
+            } catch (NumberFormatException e) {
+               throw new IllegalArgumentException("Invalid number format at line " + total + ": " + e.getMessage());
+            }
+
+            if (++r == chunkRows) {
+               consumer.accept(chunk);
+               chunk = null;
+               r = 0;
+            }
+         }
+
+         if (r > 0) {
+            double[][] last = new double[r][];
+            System.arraycopy(chunk, 0, last, 0, r);
+            consumer.accept(last);
+         }
+      }
+      return total;
+   }
+
+   /*****************************************************************************
+    * Memory-mapped reader
+    *****************************************************************************/
+
+   // largest part of a file mapped at once
+   private static final long MAX_SEGMENT = Integer.MAX_VALUE;
+   // rows parsed by one task when parsing in parallel
+   private static final int BLOCK_ROWS = 4096;
+   // exact powers of ten for the fast path of parseField
+   private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+   };
+
+   /**
+    * Reads double[][] from a CSV file whose dimensions are not known up front.
+    *
+    * @see #read(String, boolean)
+    */
+   public static double[][] read(String inFile) throws IOException {
+      return read(inFile, false);
+   }
+
+   /**
+    * Reads double[][] from a CSV file whose dimensions are not known up front.
+    *
+    * <P> The file is memory-mapped. A first pass over the bytes finds the start
+    * of every line, which gives the number of rows; the number of columns is
+    * taken from the first line. Numbers are then parsed straight from the mapped
+    * bytes, optionally with blocks of rows in parallel. Lines may end with \n,
+    * \r\n or \r, and trailing empty fields are ignored, as with String.split().
+    * Values are identical to Double.parseDouble() of each field.
+    *
+    * @param inFile   The path to the CSV file
+    * @param parallel parse blocks of rows in parallel
+    * @return A 2D array of doubles with the CSV data, one row per line
+    * @throws IOException if the file cannot be read
+    * @throws IllegalArgumentException with the line and column, if a line has the
+    *         wrong number of columns or a field is not a number
+    */
+   public static double[][] read(String inFile, boolean parallel) throws IOException {
+      List<Segment> segments = new ArrayList<>();
+      try (FileChannel channel = FileChannel.open(Paths.get(inFile), StandardOpenOption.READ)) {
+         long size = channel.size();
+         long start = 0;
+         long firstLine = 1;
+         while (start < size) {
+            long length = Math.min(size - start, MAX_SEGMENT);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            if (start + length < size) {
+               // end the segment after its last complete line
+               int last = (int) length - 1;
+               while (last >= 0 && buffer.get(last) != '\n')
+                  last--;
+               if (last < 0)
+                  throw new IOException("Line " + firstLine + " of " + inFile + " is longer than 2 GB");
+               length = last + 1;
+               buffer.limit(last + 1);
+            }
+            Segment segment = new Segment(buffer, firstLine);
+            segments.add(segment);
+            firstLine += segment.lines;
+            start += length;
+         }
+      }
+
+      int rows = 0;
+      for (Segment segment : segments) {
+         if (rows + (long) segment.lines > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many rows in " + inFile);
+         rows += segment.lines;
+      }
+      if (rows == 0)
+         return new double[0][0];
+
+      Segment first = segments.get(0);
+      int columns = first.countFields(0);
+      double[][] arr = new double[rows][columns];
+
+      // one task per block of rows, never spanning two segments
+      List<int[]> blocks = new ArrayList<>(); // {segment, first line, end line, first row}
+      int row = 0;
+      for (int s = 0; s < segments.size(); s++) {
+         int lines = segments.get(s).lines;
+         for (int line = 0; line < lines; line += BLOCK_ROWS) {
+            blocks.add(new int[] {s, line, Math.min(lines, line + BLOCK_ROWS), row + line});
+         }
+         row += lines;
+      }
+
+      IntStream tasks = IntStream.range(0, blocks.size());
+      (parallel ? tasks.parallel() : tasks).forEach(b -> {
+         int[] block = blocks.get(b);
+         Segment segment = segments.get(block[0]);
+         for (int line = block[1]; line < block[2]; line++) {
+            segment.parseLine(line, arr[block[3] + line - block[1]]);
+         }
+      });
+      return arr;
+   }
+
+   /**
+    * Mapped part of a file made of whole lines.
+    */
+   private static final class Segment {
+      final MappedByteBuffer buffer; // read with absolute gets only, so tasks can share it
+      final long firstLine; // 1-based line number of the first line
+      final int lines;
+      final int[] lineStarts; // offset of each line, then the end of the segment
+
+      Segment(MappedByteBuffer buffer, long firstLine) {
+         this.buffer = buffer;
+         this.firstLine = firstLine;
+
+         int end = buffer.limit();
+         int[] starts = new int[1024];
+         int count = 0;
+         int p = 0;
+         while (p < end) {
+            if (count == starts.length - 1)
+               starts = Arrays.copyOf(starts, 2 * starts.length);
+            starts[count++] = p;
+            while (p < end) {
+               byte b = buffer.get(p++);
+               if (b == '\n')
+                  break;
+               if (b == '\r') {
+                  if (p < end && buffer.get(p) == '\n')
+                     p++;
+                  break;
+               }
+            }
+         }
+         starts[count] = end;
+         this.lines = count;
+         this.lineStarts = starts;
+      }
+
+      /**
+       * @return end of line i, without its terminator and trailing commas
+       */
+      private int contentEnd(int i) {
+         int start = lineStarts[i];
+         int end = lineStarts[i + 1];
+         if (end > start && buffer.get(end - 1) == '\n')
+            end--;
+         if (end > start && buffer.get(end - 1) == '\r')
+            end--;
+         while (end > start && buffer.get(end - 1) == ',')
+            end--;
+         return end;
+      }
+
+      int countFields(int i) {
+         int fields = 1;
+         for (int p = lineStarts[i], end = contentEnd(i); p < end; p++) {
+            if (buffer.get(p) == ',')
+               fields++;
+         }
+         return fields;
+      }
+
+      void parseLine(int i, double[] out) {
+         int start = lineStarts[i];
+         int end = contentEnd(i);
+         int c = 0;
+         int from = start;
+         while (true) {
+            int to = from;
+            while (to < end && buffer.get(to) != ',')
+               to++;
+            if (c == out.length)
+               throw new IllegalArgumentException("File has invalid dimensions (columns) at line " + (firstLine + i)
+                                                  + ". Expected: " + out.length + ", but got: " + countFields(i));
+            out[c] = parseField(from, to, i, c + 1, from - start + 1);
+            c++;
+            if (to == end)
+               break;
+            from = to + 1;
+         }
+         if (c != out.length)
+            throw new IllegalArgumentException("File has invalid dimensions (columns) at line " + (firstLine + i)
+                                               + ". Expected: " + out.length + ", but got: " + c);
+      }
+
+      /**
+       * Parses bytes [from, to). Plain decimals with at most 15 significant digits
+       * and a small exponent are converted exactly with one multiplication or
+       * division by a power of ten; anything else goes to Double.parseDouble().
+       */
+      private double parseField(int from, int to, int line, int column, int character) {
+         int p = from;
+         boolean negative = false;
+         if (p < to && (buffer.get(p) == '-' || buffer.get(p) == '+')) {
+            negative = buffer.get(p) == '-';
+            p++;
+         }
+
+         long mantissa = 0;
+         int significant = 0; // digits in mantissa, not counting leading zeros
+         int digits = 0;
+         int scale = 0; // power of ten of the last mantissa digit
+         boolean point = false;
+         for (; p < to; p++) {
+            byte b = buffer.get(p);
+            if (b >= '0' && b <= '9') {
+               digits++;
+               if (point)
+                  scale--;
+               if (mantissa != 0 || b != '0') {
+                  if (++significant > 15)
+                     return parseSlow(from, to, line, column, character);
+                  mantissa = 10 * mantissa + (b - '0');
+               }
+            } else if (b == '.' && !point) {
+               point = true;
+            } else {
+               break;
+            }
+         }
+
+         if (p < to && digits > 0 && (buffer.get(p) == 'e' || buffer.get(p) == 'E')) {
+            int q = p + 1;
+            boolean negativeExponent = false;
+            if (q < to && (buffer.get(q) == '-' || buffer.get(q) == '+')) {
+               negativeExponent = buffer.get(q) == '-';
+               q++;
+            }
+            int exponent = 0;
+            int exponentDigits = 0;
+            for (; q < to && buffer.get(q) >= '0' && buffer.get(q) <= '9' && exponentDigits < 4; q++, exponentDigits++)
+               exponent = 10 * exponent + (buffer.get(q) - '0');
+            if (exponentDigits > 0) {
+               scale += negativeExponent ? -exponent : exponent;
+               p = q;
+            }
+         }
+
+         if (p != to || digits == 0)
+            return parseSlow(from, to, line, column, character);
+
+         double value;
+         if (mantissa == 0)
+            value = 0.0;
+         else if (scale >= 0 && scale <= 22)
+            value = mantissa * POWERS_OF_TEN[scale];
+         else if (scale < 0 && scale >= -22)
+            value = mantissa / POWERS_OF_TEN[-scale];
+         else
+            return parseSlow(from, to, line, column, character);
+         return negative ? -value : value;
+      }
+
+      private double parseSlow(int from, int to, int line, int column, int character) {
+         byte[] bytes = new byte[to - from];
+         for (int p = from; p < to; p++)
+            bytes[p - from] = buffer.get(p);
+         String text = new String(bytes, StandardCharsets.ISO_8859_1);
+         try {
+            return Double.parseDouble(text);
+         } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number \"" + text + "\" at line " + (firstLine + line)
+                                               + ", column " + column + " (character " + character + ")");
+         }
+      }
+   }
+
    public static void main(String[] args) {
       String testFile;
       int rows;
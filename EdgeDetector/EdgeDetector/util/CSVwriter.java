@@ -1,144 +1,333 @@
 package edgedetector.util;
 /*************************************************************************
  * @author Altschuler and Wu Lab
- * 
- * Writes CSV files 
+ *
+ * Writes CSV files
+ *
+ * Values are formatted straight into a reusable byte buffer that is flushed
+ * in large blocks through a FileChannel. The output is the same, byte for
+ * byte, as printing every value through a PrintStream.
  ************************************************************************/
 
-import java.io.PrintStream;
 import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class CSVwriter {
 
+   // bytes formatted before a block is written
+   private static final int BUFFER_SIZE = 1 << 20;
+
    /**
     * Writes double[][] to .txt file
     */
    public static void write(String outFile, double[][] arr) throws FileNotFoundException {
-      PrintStream out = new PrintStream(new FileOutputStream(outFile));
-
-      int rows = arr.length;
-      int columns = arr[0].length;
-
-      for (int r = 0; r < rows; r++) {
-         for (int c = 0; c < columns; c++) {
-            out.print(arr[r][c]);
-
-            if (c != columns - 1)
-               out.print(',');
-         }
-         out.println();
-      }
-
-      out.close();
+      write(outFile, arr, false);
    }
-   
-   
+
    /**
     * Writes double[][] to .txt file
+    * @param concurrent write each full block on another thread while the next one is formatted
     */
-   public static void write(String outFile, boolean[][] arr) throws FileNotFoundException {
-      PrintStream out = new PrintStream(new FileOutputStream(outFile));
+   public static void write(String outFile, double[][] arr, boolean concurrent) throws FileNotFoundException {
+      try (Output out = new Output(outFile, concurrent)) {
+         print(out, arr);
+      }
+   }
 
-      int rows = arr.length;
-      int columns = arr[0].length;
 
-      for (int r = 0; r < rows; r++) {
-         for (int c = 0; c < columns; c++) {
-            out.print(arr[r][c] ? "1" : "0");
+   /**
+    * Writes boolean[][] to .txt file, 1 for true and 0 for false
+    */
+   public static void write(String outFile, boolean[][] arr) throws FileNotFoundException {
+      write(outFile, arr, false);
+   }
 
-            if (c != columns - 1)
-               out.print(',');
+   /**
+    * Writes boolean[][] to .txt file, 1 for true and 0 for false
+    * @param concurrent write each full block on another thread while the next one is formatted
+    */
+   public static void write(String outFile, boolean[][] arr, boolean concurrent) throws FileNotFoundException {
+      try (Output out = new Output(outFile, concurrent)) {
+         int columns = arr[0].length;
+         for (boolean[] row : arr) {
+            out.putRow(row, columns);
+            out.newLine();
          }
-         out.println();
       }
-
-      out.close();
    }
-   
-   
 
-   
+
+
+
    /**
     * Writes int[] to .txt file
     */
    public static void write(String outFile, int[] arr) throws FileNotFoundException {
-      PrintStream out = new PrintStream(new FileOutputStream(outFile));
-      
-      for (int r = 0; r < arr.length; r++)
-          out.println(arr[r]);
- 
-      out.close();
+      try (Output out = new Output(outFile, false)) {
+         for (int value : arr) {
+            out.putLong(value);
+            out.newLine();
+         }
+      }
    }
-   
+
    /**
     * Writes ArrayList<Integer> to .txt file
     */
    public static void write(String outFile, ArrayList<double[][][]> al) throws FileNotFoundException {
-      PrintStream out = new PrintStream(new FileOutputStream(outFile));
-      
-      for (double[][][] arr : al) {
-         for (int i = 0; i < arr.length; i++) {
-            for (int j = 0; j < arr[0].length; j++) {
-               for (int k = 0; k < arr[0][0].length; k++) {
-                  out.print(arr[i][j][k] + " ");
+      try (Output out = new Output(outFile, false)) {
+         for (double[][][] arr : al) {
+            for (int i = 0; i < arr.length; i++) {
+               for (int j = 0; j < arr[0].length; j++) {
+                  for (int k = 0; k < arr[0][0].length; k++) {
+                     out.putDouble(arr[i][j][k]);
+                     out.put((byte) ' ');
+                  }
+                  out.put((byte) '\t');
                }
-               out.print("\t");
+               out.newLine();
             }
-            out.println();
+            out.putAscii("****");
+            out.newLine();
          }
-         out.println("****");
       }
- 
-      out.close();
    }
-   
 
-   public static void write(String outFile, double[][][] arr) throws FileNotFoundException {
-      PrintStream out = new PrintStream(new FileOutputStream(outFile));
 
-      int rows = arr.length;
-      int columns = arr[0].length;
-      int slices = arr[0][0].length;
+   public static void write(String outFile, double[][][] arr) throws FileNotFoundException {
+      try (Output out = new Output(outFile, false)) {
+         int rows = arr.length;
+         int columns = arr[0].length;
+         int slices = arr[0][0].length;
 
-      for (int r = 0; r < rows; r++) {
-         for (int c = 0; c < columns; c++) {
-            for (int s = 0; s < slices; s++) {
-               out.print(arr[r][c][s]);
+         for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns; c++) {
+               for (int s = 0; s < slices; s++) {
+                  out.putDouble(arr[r][c][s]);
+               }
+               out.newLine();
             }
-            out.println();
+            out.putAscii("*******");
+            out.newLine();
          }
-         out.println("*******");
       }
-
-      out.close();
    }
-   
-   
+
+
    public static void writeMultiple(String outFile, double[][] arr1, double[][] arr2, double[][] arr3) throws FileNotFoundException {
-      PrintStream out = new PrintStream(new FileOutputStream(outFile));
-      print(out, arr1);
-      print(out, arr2);
-      print(out, arr3);
-      out.close();
+      try (Output out = new Output(outFile, false)) {
+         printSection(out, arr1);
+         printSection(out, arr2);
+         printSection(out, arr3);
+      }
    }
-   
-   private static void print(PrintStream out, double[][] arr) {
-      for (int r = 0; r < arr.length; r++) {
-         for (int c = 0; c < arr[0].length; c++) {
-            out.print(arr[r][c]);
 
-            if (c != arr[0].length - 1)
-               out.print(',');
+   private static void print(Output out, double[][] arr) {
+      int columns = arr[0].length;
+      for (double[] row : arr) {
+         for (int c = 0; c < columns; c++) {
+            out.putDouble(row[c]);
+
+            if (c != columns - 1)
+               out.put((byte) ',');
+         }
+         out.newLine();
+      }
+   }
+
+   private static void printSection(Output out, double[][] arr) {
+      print(out, arr);
+      out.newLine();
+      out.newLine();
+      out.putAscii("***********************");
+      out.newLine();
+      out.newLine();
+   }
+
+
+   /**
+    * Formats values into a byte buffer and writes it to a FileChannel when full.
+    * In concurrent mode there are two buffers: one is written by a background
+    * thread while the caller formats into the other. Write errors are thrown as
+    * UncheckedIOException when the buffer is flushed.
+    */
+   private static final class Output implements AutoCloseable {
+      private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+      private final FileOutputStream stream;
+      private final FileChannel channel;
+      private final ExecutorService writer; // null unless concurrent
+      private Future<?> pending; // last block handed to writer
+      private byte[] spare; // buffer not being formatted into (concurrent only)
+      private byte[] buf;
+      private int n; // used bytes of buf
+
+      Output(String outFile, boolean concurrent) throws FileNotFoundException {
+         this.stream = new FileOutputStream(outFile);
+         this.channel = stream.getChannel();
+         this.buf = new byte[BUFFER_SIZE];
+         if (concurrent) {
+            this.writer = Executors.newSingleThreadExecutor(r -> {
+               Thread thread = new Thread(r, "CSVwriter");
+               thread.setDaemon(true);
+               return thread;
+            });
+            this.spare = new byte[BUFFER_SIZE];
+         } else {
+            this.writer = null;
+         }
+      }
+
+      void put(byte b) {
+         if (n == buf.length)
+            flush();
+         buf[n++] = b;
+      }
+
+      void putAscii(String s) {
+         if (buf.length - n < s.length())
+            flush();
+         for (int i = 0; i < s.length(); i++) {
+            buf[n++] = (byte) s.charAt(i);
+         }
+      }
+
+      void newLine() {
+         if (buf.length - n < LINE_SEPARATOR.length)
+            flush();
+         for (byte b : LINE_SEPARATOR) {
+            buf[n++] = b;
+         }
+      }
+
+      /**
+       * Same digits as Long.toString(value).
+       */
+      void putLong(long value) {
+         if (buf.length - n < 20)
+            flush();
+         if (value == Long.MIN_VALUE) {
+            putAscii(Long.toString(value));
+            return;
+         }
+         if (value < 0) {
+            buf[n++] = '-';
+            value = -value;
+         }
+         int digits = 1;
+         for (long v = value; v >= 10; v /= 10) {
+            digits++;
+         }
+         for (int i = n + digits - 1; i >= n; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+         }
+         n += digits;
+      }
+
+      /**
+       * Same characters as Double.toString(value). Whole numbers below 10^7,
+       * which Double.toString prints as "123.0", skip the general algorithm.
+       */
+      void putDouble(double value) {
+         long whole = (long) value;
+         if (whole == value && Math.abs(value) < 1e7
+             && (whole != 0 || Double.doubleToRawLongBits(value) == 0)) {
+            putLong(whole);
+            putAscii(".0");
+         } else {
+            putAscii(Double.toString(value));
+         }
+      }
+
+      /**
+       * "1" or "0" for each of the first columns values, separated by commas.
+       */
+      void putRow(boolean[] row, int columns) {
+         int c = 0;
+         while (c < columns) {
+            if (buf.length - n < 2)
+               flush();
+            int end = Math.min(columns, c + (buf.length - n) / 2);
+            for (; c < end; c++) {
+               buf[n++] = row[c] ? (byte) '1' : (byte) '0';
+               buf[n++] = ',';
+            }
+         }
+         if (columns > 0)
+            n--; // no comma after the last value
+      }
+
+      private void flush() {
+         if (n == 0)
+            return;
+         if (writer == null) {
+            writeFully(buf, n);
+         } else {
+            awaitPending();
+            byte[] block = buf;
+            int length = n;
+            pending = writer.submit(() -> writeFully(block, length));
+            buf = spare;
+            spare = block;
+         }
+         n = 0;
+      }
+
+      private void writeFully(byte[] block, int length) {
+         try {
+            ByteBuffer data = ByteBuffer.wrap(block, 0, length);
+            while (data.hasRemaining()) {
+               channel.write(data);
+            }
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      }
+
+      private void awaitPending() {
+         if (pending == null)
+            return;
+         try {
+            pending.get();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("CSV write interrupted", e);
+         } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException)
+               throw (UncheckedIOException) e.getCause();
+            throw new IllegalStateException("CSV write failed", e.getCause());
+         } finally {
+            pending = null;
+         }
+      }
+
+      @Override
+      public void close() {
+         try {
+            flush();
+            awaitPending();
+         } finally {
+            if (writer != null)
+               writer.shutdownNow();
+            try {
+               stream.close();
+            } catch (IOException e) {
+               throw new UncheckedIOException(e);
+            }
          }
-         out.println();
       }
-      out.println();
-      out.println();
-      out.println("***********************");
-      out.println();
    }
 
 }
\ No newline at end of file
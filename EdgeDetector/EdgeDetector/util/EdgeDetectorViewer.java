@@ -1,30 +1,38 @@
 package edgedetector.util;
 
-import edgedetector.detectors.GaussianEdgeDetector;
-import edgedetector.detectors.PrewittEdgeDetector;
-import edgedetector.detectors.RobertsCrossEdgeDetector;
-import edgedetector.detectors.SobelEdgeDetector;
-import edgedetector.grayscale.Grayscale;
+import edgedetector.detectors.EdgeOperator;
+import edgedetector.detectors.EdgePipeline;
 import edgedetector.ui.ImageViewer;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class EdgeDetectorViewer {
 
    public static void main(String[] args) {
       try {
          // Provide the full absolute path to the image file here
-         test("C:/Users/CES_Engineer/Downloads/TestData.jpg");
+         test(args.length > 0 ? args[0] : "C:/Users/CES_Engineer/Downloads/TestData.jpg");
       } catch (IOException e) {
          e.printStackTrace();
       }
    }
 
    /**
-    * Displays results from Sobel, Prewitt, and Roberts Cross edge detectors.
+    * Displays results from Sobel, Prewitt, and Roberts Cross edge detectors,
+    * run concurrently, and prints how long each one took.
     *
     * @param imageFile - The absolute or relative path of the image file.
     * @throws IOException
@@ -37,29 +45,124 @@ public class EdgeDetectorViewer {
          return;
       }
 
-      // Read image and get pixels
+      // Read image
       BufferedImage originalImage = ImageIO.read(file);
-      int[][] pixels = Grayscale.imgToGrayPixels(originalImage);
 
-      // Run various Gaussian edge detectors
-      GaussianEdgeDetector[] edgeDetectors = new GaussianEdgeDetector[3];
-      edgeDetectors[0] = new SobelEdgeDetector(pixels);
-      edgeDetectors[1] = new PrewittEdgeDetector(pixels);
-      edgeDetectors[2] = new RobertsCrossEdgeDetector(pixels);
+      // Run various Gaussian edge detectors and make images out of their edges
+      Map<String, EdgePipeline.Stage<boolean[][]>> detectors = new LinkedHashMap<>();
+      detectors.put("Sobel", EdgePipeline.gaussianDetector(EdgeOperator.SOBEL, false));
+      detectors.put("Prewitt", EdgePipeline.gaussianDetector(EdgeOperator.PREWITT, false));
+      detectors.put("Roberts Cross", EdgePipeline.gaussianDetector(EdgeOperator.ROBERTS_CROSS, false));
+      List<Result> results = compare(originalImage, detectors);
 
-      // Get edges
-      boolean[][] sobelEdges = edgeDetectors[0].getEdges();
-      boolean[][] prewittEdges = edgeDetectors[1].getEdges();
-      boolean[][] robertsCrossEdges = edgeDetectors[2].getEdges();
-
-      // Make images out of edges
-      BufferedImage sobelImage = Threshold.applyThresholdReversed(sobelEdges);
-      BufferedImage prewittImage = Threshold.applyThresholdReversed(prewittEdges);
-      BufferedImage robertsCrossImage = Threshold.applyThresholdReversed(robertsCrossEdges);
+      for (Result result : results)
+         System.out.println(result);
 
       // Display edges
-      BufferedImage[] toShow = {originalImage, sobelImage, prewittImage, robertsCrossImage};
+      BufferedImage[] toShow = {originalImage, results.get(0).getImage(), results.get(1).getImage(),
+                                results.get(2).getImage()};
       String title = "Edge Detection by Jason Altschuler";
       ImageViewer.showImages(toShow, title, 2, 2);
    }
+
+   /**
+    * Runs every detector concurrently on one shared pipeline over image (so
+    * the gray pixels and any other common stage are computed once and only
+    * read afterwards), and renders each detector's edges on the same thread
+    * right after it finishes.
+    *
+    * <P> Wall time is measured from submission to rendered image. CPU time is
+    * that of the worker thread; a stage shared by several detectors is charged
+    * to the one that computed it, the others only wait for it.
+    *
+    * @param image image to detect edges in
+    * @param detectors final stage of each detector, by display name
+    * @return one result per detector, in the order of detectors
+    */
+   public static List<Result> compare(BufferedImage image, Map<String, EdgePipeline.Stage<boolean[][]>> detectors) {
+      EdgePipeline pipeline = new EdgePipeline(image);
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+
+      int workers = Math.max(1, Math.min(detectors.size(), Runtime.getRuntime().availableProcessors()));
+      ExecutorService pool = Executors.newFixedThreadPool(workers);
+      try {
+         List<Future<Result>> futures = new ArrayList<>();
+         for (Map.Entry<String, EdgePipeline.Stage<boolean[][]>> detector : detectors.entrySet()) {
+            long submitted = System.nanoTime();
+            futures.add(pool.submit(() -> {
+               long cpuStart = cpuTime ? threads.getCurrentThreadCpuTime() : 0;
+               boolean[][] edges = pipeline.get(detector.getValue());
+               BufferedImage rendered = Threshold.applyThresholdReversed(edges);
+               long cpu = cpuTime ? threads.getCurrentThreadCpuTime() - cpuStart : -1;
+               return new Result(detector.getKey(), edges, rendered, System.nanoTime() - submitted, cpu);
+            }));
+         }
+
+         List<Result> results = new ArrayList<>();
+         for (Future<Result> future : futures)
+            results.add(future.get());
+         return results;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Comparison interrupted", e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof RuntimeException)
+            throw (RuntimeException) e.getCause();
+         throw new IllegalStateException("Detector failed", e.getCause());
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+
+   /**
+    * Edges, rendered image and timing of one detector in a comparison.
+    */
+   public static final class Result {
+      private final String name;
+      private final boolean[][] edges;
+      private final BufferedImage image;
+      private final long wallNanos;
+      private final long cpuNanos;
+
+      private Result(String name, boolean[][] edges, BufferedImage image, long wallNanos, long cpuNanos) {
+         this.name = name;
+         this.edges = edges;
+         this.image = image;
+         this.wallNanos = wallNanos;
+         this.cpuNanos = cpuNanos;
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      public boolean[][] getEdges() {
+         return edges;
+      }
+
+      /**
+       * @return edges rendered by Threshold.applyThresholdReversed
+       */
+      public BufferedImage getImage() {
+         return image;
+      }
+
+      public long getWallNanos() {
+         return wallNanos;
+      }
+
+      /**
+       * @return CPU time of the worker thread, or -1 if the JVM cannot measure it
+       */
+      public long getCpuNanos() {
+         return cpuNanos;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("%s: wall %.1f ms, cpu %s", name, wallNanos / 1e6,
+                              cpuNanos < 0 ? "n/a" : String.format("%.1f ms", cpuNanos / 1e6));
+      }
+   }
 }
@@ -0,0 +1,417 @@
+package edgedetector.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*************************************************************************
+ * Binary edge map files.
+ *
+ * Layout (big-endian):
+ *    4 bytes   magic "EMAP"
+ *    1 byte    version (1)
+ *    1 byte    encoding (0 = packed, 1 = run-length)
+ *    2 bytes   reserved (0)
+ *    4 bytes   rows
+ *    4 bytes   columns
+ *    packed:   rows * ((columns + 7) / 8) bytes, see PackedEdgeMap
+ *    run-length: (rows + 1) 8-byte file offsets of the rows, then the rows.
+ *       A row is a sequence of unsigned LEB128 run lengths that alternate
+ *       between non-edge and edge pixels, starting with non-edge (possibly
+ *       an empty run) and adding up to columns.
+ *
+ * Both encodings can seek to any row, so a single row or region is decoded
+ * without reading the rest of the map. The writer picks the smaller encoding
+ * unless told otherwise: sparse edge maps compress well with run lengths,
+ * noisy ones are smaller packed.
+ ************************************************************************/
+public class EdgeMapFile implements Closeable {
+
+   public enum Encoding {
+      PACKED, RUN_LENGTH
+   }
+
+   private static final int MAGIC = ('E' << 24) | ('M' << 16) | ('A' << 8) | 'P';
+   private static final int VERSION = 1;
+   private static final int HEADER_BYTES = 16;
+
+   private final FileChannel channel;
+   private final Encoding encoding;
+   private final int rows;
+   private final int columns;
+   private final int stride;
+   private final long[] rowOffsets; // run-length only
+
+   /**
+    * Opens an edge map file for reading single rows or regions.
+    */
+   public EdgeMapFile(String file) throws IOException {
+      this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+      try {
+         ByteBuffer header = readFully(channel, 0, HEADER_BYTES);
+         if (header.getInt() != MAGIC)
+            throw new IOException("Not an edge map: " + file);
+         int version = header.get();
+         if (version != VERSION)
+            throw new IOException("Unsupported edge map version " + version + ": " + file);
+         int code = header.get();
+         if (code < 0 || code >= Encoding.values().length)
+            throw new IOException("Unknown edge map encoding " + code + ": " + file);
+         header.getShort();
+
+         this.encoding = Encoding.values()[code];
+         this.rows = header.getInt();
+         this.columns = header.getInt();
+         if (rows < 0 || columns < 0)
+            throw new IOException("Invalid edge map dimensions: " + file);
+         this.stride = PackedEdgeMap.strideOf(columns);
+
+         if (encoding == Encoding.RUN_LENGTH) {
+            ByteBuffer index = readFully(channel, HEADER_BYTES, 8 * (rows + 1));
+            rowOffsets = new long[rows + 1];
+            index.asLongBuffer().get(rowOffsets);
+         } else {
+            rowOffsets = null;
+         }
+      } catch (IOException | RuntimeException e) {
+         channel.close();
+         throw e;
+      }
+   }
+
+
+   /*****************************************************************************
+    * Writing
+    *****************************************************************************/
+
+   public static void write(String file, boolean[][] edges) throws IOException {
+      write(file, new PackedEdgeMap(edges));
+   }
+
+   /**
+    * @param edges flat, row-major edges: pixel (row, column) is at row * columns + column
+    */
+   public static void write(String file, boolean[] edges, int rows, int columns) throws IOException {
+      write(file, new PackedEdgeMap(edges, rows, columns));
+   }
+
+   /**
+    * Writes map with whichever encoding is smaller.
+    */
+   public static void write(String file, PackedEdgeMap map) throws IOException {
+      write(file, map, null);
+   }
+
+   /**
+    * @param encoding encoding to use, or null for the smaller one
+    */
+   public static void write(String file, PackedEdgeMap map, Encoding encoding) throws IOException {
+      ByteBuffer encoded = encode(map, encoding);
+      try (FileChannel out = FileChannel.open(Paths.get(file), StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         while (encoded.hasRemaining()) {
+            out.write(encoded);
+         }
+      }
+   }
+
+   /**
+    * Encodes map into the file layout.
+    * @param encoding encoding to use, or null for the smaller one
+    */
+   public static ByteBuffer encode(PackedEdgeMap map, Encoding encoding) {
+      int rows = map.getRows();
+      int columns = map.getColumns();
+      long packedBytes = (long) rows * map.getStride();
+
+      byte[] runs = null;
+      int[] rowEnds = null;
+      if (encoding != Encoding.PACKED) {
+         rowEnds = new int[rows];
+         runs = encodeRuns(map, rowEnds, encoding == null ? packedBytes : Long.MAX_VALUE);
+         if (runs == null) {
+            encoding = Encoding.PACKED; // run lengths grew past the packed size
+         } else if (encoding == null) {
+            int runBytes = (rows == 0) ? 0 : rowEnds[rows - 1];
+            encoding = (8L * (rows + 1) + runBytes < packedBytes) ? Encoding.RUN_LENGTH : Encoding.PACKED;
+         }
+      }
+
+      ByteBuffer out;
+      if (encoding == Encoding.PACKED) {
+         out = ByteBuffer.allocate(Math.toIntExact(HEADER_BYTES + packedBytes));
+         putHeader(out, Encoding.PACKED, rows, columns);
+         out.put(map.getBits(), 0, (int) packedBytes);
+      } else {
+         int runBytes = (rows == 0) ? 0 : rowEnds[rows - 1];
+         long dataStart = HEADER_BYTES + 8L * (rows + 1);
+         out = ByteBuffer.allocate(Math.toIntExact(dataStart + runBytes));
+         putHeader(out, Encoding.RUN_LENGTH, rows, columns);
+         out.putLong(dataStart);
+         for (int r = 0; r < rows; r++) {
+            out.putLong(dataStart + rowEnds[r]);
+         }
+         out.put(runs, 0, runBytes);
+      }
+      out.flip();
+      return out;
+   }
+
+   /**
+    * Creates a packed edge map file without edges, for writers that fill in
+    * rows themselves, e.g. through a memory mapping. Row r starts at
+    * packedRowOffset(r, columns).
+    */
+   public static void createPacked(String file, int rows, int columns) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      putHeader(header, Encoding.PACKED, rows, columns);
+      header.flip();
+      try (FileChannel out = FileChannel.open(Paths.get(file), StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         while (header.hasRemaining()) {
+            out.write(header);
+         }
+         // extend with zeros (no edges); sparse where the file system allows
+         long end = packedRowOffset(rows, columns);
+         if (end > HEADER_BYTES) {
+            out.write(ByteBuffer.allocate(1), end - 1);
+         }
+      }
+   }
+
+   /**
+    * @return file offset of row r in a packed edge map file
+    */
+   public static long packedRowOffset(int r, int columns) {
+      return HEADER_BYTES + (long) r * PackedEdgeMap.strideOf(columns);
+   }
+
+   private static void putHeader(ByteBuffer out, Encoding encoding, int rows, int columns) {
+      out.putInt(MAGIC);
+      out.put((byte) VERSION);
+      out.put((byte) encoding.ordinal());
+      out.putShort((short) 0);
+      out.putInt(rows);
+      out.putInt(columns);
+   }
+
+   /**
+    * Run-length encodes all rows of map; rowEnds[r] receives the end of row r in the result.
+    * @return run lengths, or null as soon as they need more than limit bytes
+    */
+   private static byte[] encodeRuns(PackedEdgeMap map, int[] rowEnds, long limit) {
+      byte[] bits = map.getBits();
+      int columns = map.getColumns();
+      int stride = map.getStride();
+      byte[] out = new byte[Math.max(16, (int) Math.min(limit, 1 << 16))];
+      int n = 0;
+
+      for (int r = 0; r < map.getRows(); r++) {
+         int p = r * stride;
+         boolean edge = false;
+         int c = 0;
+         do {
+            int end = nextChange(bits, p, columns, c, edge);
+            if (out.length - n < 5) {
+               if (out.length >= limit)
+                  return null;
+               out = Arrays.copyOf(out, (int) Math.min(2L * out.length, Integer.MAX_VALUE - 8));
+            }
+            n = putVarint(out, n, end - c);
+            c = end;
+            edge = !edge;
+         } while (c < columns);
+         if (n > limit)
+            return null;
+         rowEnds[r] = n;
+      }
+      return out;
+   }
+
+   /**
+    * @return first column at or after c, in the row starting at p, whose bit is not edge
+    */
+   private static int nextChange(byte[] bits, int p, int columns, int c, boolean edge) {
+      int same = edge ? 0xff : 0x00;
+      while (c < columns) {
+         int b = bits[p + (c >>> 3)] & 0xff;
+         if ((c & 7) == 0 && c + 8 <= columns && b == same) {
+            c += 8; // whole byte belongs to the run
+         } else if (((b & (0x80 >>> (c & 7))) != 0) == edge) {
+            c++;
+         } else {
+            return c;
+         }
+      }
+      return columns;
+   }
+
+   private static int putVarint(byte[] out, int n, int value) {
+      while ((value & ~0x7f) != 0) {
+         out[n++] = (byte) ((value & 0x7f) | 0x80);
+         value >>>= 7;
+      }
+      out[n++] = (byte) value;
+      return n;
+   }
+
+
+   /*****************************************************************************
+    * Reading
+    *****************************************************************************/
+
+   public static PackedEdgeMap read(String file) throws IOException {
+      try (EdgeMapFile in = new EdgeMapFile(file)) {
+         return in.readRegion(0, 0, in.rows, in.columns);
+      }
+   }
+
+   public static boolean[][] readBooleans(String file) throws IOException {
+      return read(file).toBooleans();
+   }
+
+   /**
+    * Decodes a single row.
+    */
+   public boolean[] readRow(int row) throws IOException {
+      boolean[] out = new boolean[columns];
+      readRegion(row, 0, 1, columns).unpackRow(0, out, 0);
+      return out;
+   }
+
+   /**
+    * Decodes the region [row, row + height) x [column, column + width). Only the
+    * bytes of those rows are read from the file.
+    */
+   public PackedEdgeMap readRegion(int row, int column, int height, int width) throws IOException {
+      if (row < 0 || column < 0 || height < 0 || width < 0 || row + height > rows || column + width > columns)
+         throw new IllegalArgumentException("Region outside of edge map");
+
+      PackedEdgeMap region = new PackedEdgeMap(height, width);
+      if (height == 0 || width == 0)
+         return region;
+
+      if (encoding == Encoding.PACKED) {
+         ByteBuffer data = readFully(channel, HEADER_BYTES + (long) row * stride, height * stride);
+         for (int r = 0; r < height; r++) {
+            copyBits(data.array(), r * stride, column, region.getBits(), r * region.getStride(), width);
+         }
+      } else {
+         long start = rowOffsets[row];
+         ByteBuffer data = readFully(channel, start, Math.toIntExact(rowOffsets[row + height] - start));
+         byte[] full = new byte[stride];
+         for (int r = 0; r < height; r++) {
+            int from = (int) (rowOffsets[row + r] - start);
+            int to = (int) (rowOffsets[row + r + 1] - start);
+            Arrays.fill(full, (byte) 0);
+            decodeRuns(data.array(), from, to, full, row + r);
+            copyBits(full, 0, column, region.getBits(), r * region.getStride(), width);
+         }
+      }
+      return region;
+   }
+
+   /**
+    * Decodes the run lengths in data[from, to) into a packed row.
+    */
+   private void decodeRuns(byte[] data, int from, int to, byte[] packed, int row) throws IOException {
+      int c = 0;
+      boolean edge = false;
+      int n = from;
+      while (n < to) {
+         int length = 0;
+         int shift = 0;
+         int b;
+         do {
+            if (n >= to || shift > 28)
+               throw new IOException("Corrupt run length in row " + row);
+            b = data[n++];
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+         } while ((b & 0x80) != 0);
+
+         if (length < 0 || length > columns - c)
+            throw new IOException("Runs longer than the row in row " + row);
+         if (edge) {
+            fillBits(packed, c, c + length);
+         }
+         c += length;
+         edge = !edge;
+      }
+      if (c != columns)
+         throw new IOException("Runs shorter than the row in row " + row);
+   }
+
+   /**
+    * Sets bits [from, to) of a packed row.
+    */
+   private static void fillBits(byte[] packed, int from, int to) {
+      while (from < to && (from & 7) != 0) {
+         packed[from >>> 3] |= (byte) (0x80 >>> (from & 7));
+         from++;
+      }
+      while (from + 8 <= to) {
+         packed[from >>> 3] = (byte) 0xff;
+         from += 8;
+      }
+      while (from < to) {
+         packed[from >>> 3] |= (byte) (0x80 >>> (from & 7));
+         from++;
+      }
+   }
+
+   /**
+    * Copies width bits starting at bit column of the packed row at src[srcPos]
+    * to the start of the packed row at dst[dstPos].
+    */
+   private static void copyBits(byte[] src, int srcPos, int column, byte[] dst, int dstPos, int width) {
+      int shift = column & 7;
+      int s = srcPos + (column >>> 3);
+      int bytes = PackedEdgeMap.strideOf(width);
+      int lastSource = srcPos + ((column + width - 1) >>> 3);
+      for (int k = 0; k < bytes; k++, s++) {
+         int b = (src[s] & 0xff) << shift;
+         if (shift != 0 && s + 1 <= lastSource) {
+            b |= (src[s + 1] & 0xff) >>> (8 - shift);
+         }
+         dst[dstPos + k] = (byte) b;
+      }
+      // clear the padding after the last column
+      int tail = width & 7;
+      if (tail != 0) {
+         dst[dstPos + bytes - 1] &= (byte) (0xff00 >>> tail);
+      }
+   }
+
+   private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      while (buffer.hasRemaining()) {
+         if (channel.read(buffer, position + buffer.position()) < 0)
+            throw new EOFException("Truncated edge map");
+      }
+      buffer.flip();
+      return buffer;
+   }
+
+   public int getRows() {
+      return rows;
+   }
+
+   public int getColumns() {
+      return columns;
+   }
+
+   public Encoding getEncoding() {
+      return encoding;
+   }
+
+   @Override
+   public void close() throws IOException {
+      channel.close();
+   }
+}
@@ -0,0 +1,182 @@
+package edgedetector.util;
+
+import java.util.Arrays;
+
+/**
+ * Edge map with one bit per pixel.
+ *
+ * <P> Rows are (columns + 7) / 8 bytes long, the most significant bit of a byte
+ * is the leftmost pixel and a set bit is an edge. This is the layout of the
+ * data buffer of a TYPE_BYTE_BINARY image with white edges, so the bytes can be
+ * wrapped by an image or written to a file as they are.
+ */
+public class PackedEdgeMap {
+
+   private final int rows;
+   private final int columns;
+   private final int stride; // bytes per row
+   private final byte[] bits;
+
+   public PackedEdgeMap(int rows, int columns) {
+      this(rows, columns, new byte[rows * strideOf(columns)]);
+   }
+
+   /**
+    * Wraps packed rows without copying them.
+    */
+   public PackedEdgeMap(int rows, int columns, byte[] bits) {
+      if (rows < 0 || columns < 0)
+         throw new IllegalArgumentException("Invalid dimensions");
+      if (bits.length < rows * strideOf(columns))
+         throw new IllegalArgumentException("Packed buffer too small");
+      this.rows = rows;
+      this.columns = columns;
+      this.stride = strideOf(columns);
+      this.bits = bits;
+   }
+
+   public PackedEdgeMap(boolean[][] edges) {
+      this(edges.length, edges.length == 0 ? 0 : edges[0].length);
+      for (int r = 0; r < rows; r++) {
+         packRow(edges[r], 0, r);
+      }
+   }
+
+   /**
+    * @param edges flat, row-major edges: pixel (row, column) is at row * columns + column
+    */
+   public PackedEdgeMap(boolean[] edges, int rows, int columns) {
+      this(rows, columns);
+      if (edges.length < rows * columns)
+         throw new IllegalArgumentException("Edge buffer too small");
+      for (int r = 0; r < rows; r++) {
+         packRow(edges, r * columns, r);
+      }
+   }
+
+   /**
+    * @return bytes per packed row
+    */
+   public static int strideOf(int columns) {
+      return (columns + 7) >>> 3;
+   }
+
+   /**
+    * Packs columns values of edges, starting at offset, into row r.
+    */
+   private void packRow(boolean[] edges, int offset, int r) {
+      packRow(edges, offset, columns, false, bits, r * stride);
+   }
+
+   /**
+    * Packs columns values of edges, starting at offset, into the bytes starting
+    * at bits[p]. The padding bits of the last byte are cleared.
+    * @param invert set the bits of non-edges instead
+    */
+   static void packRow(boolean[] edges, int offset, int columns, boolean invert, byte[] bits, int p) {
+      int flip = invert ? 1 : 0;
+      int c = 0;
+      // whole bytes first, then the partial last byte
+      for (; c + 8 <= columns; c += 8, p++) {
+         int b = 0;
+         for (int bit = 0; bit < 8; bit++) {
+            b = (b << 1) | ((edges[offset + c + bit] ? 1 : 0) ^ flip);
+         }
+         bits[p] = (byte) b;
+      }
+      if (c < columns) {
+         int b = 0;
+         for (int bit = 0; c + bit < columns; bit++) {
+            if (edges[offset + c + bit] != invert) b |= 0x80 >>> bit;
+         }
+         bits[p] = (byte) b;
+      }
+   }
+
+   /**
+    * Unpacks row r into columns values of out, starting at offset.
+    */
+   public void unpackRow(int r, boolean[] out, int offset) {
+      int p = r * stride;
+      for (int c = 0; c < columns; c++) {
+         out[offset + c] = (bits[p + (c >>> 3)] & (0x80 >>> (c & 7))) != 0;
+      }
+   }
+
+   public boolean get(int row, int column) {
+      return (bits[row * stride + (column >>> 3)] & (0x80 >>> (column & 7))) != 0;
+   }
+
+   public void set(int row, int column, boolean edge) {
+      int p = row * stride + (column >>> 3);
+      int mask = 0x80 >>> (column & 7);
+      bits[p] = (byte) (edge ? bits[p] | mask : bits[p] & ~mask);
+   }
+
+   public boolean[][] toBooleans() {
+      boolean[][] edges = new boolean[rows][columns];
+      for (int r = 0; r < rows; r++) {
+         unpackRow(r, edges[r], 0);
+      }
+      return edges;
+   }
+
+   /**
+    * @return flat, row-major edges
+    */
+   public boolean[] toFlat() {
+      boolean[] edges = new boolean[rows * columns];
+      for (int r = 0; r < rows; r++) {
+         unpackRow(r, edges, r * columns);
+      }
+      return edges;
+   }
+
+   /**
+    * @return number of edge pixels
+    */
+   public long countEdges() {
+      long count = 0;
+      for (int i = 0; i < rows * stride; i++) {
+         count += Integer.bitCount(bits[i] & 0xff);
+      }
+      return count;
+   }
+
+   public int getRows() {
+      return rows;
+   }
+
+   public int getColumns() {
+      return columns;
+   }
+
+   public int getStride() {
+      return stride;
+   }
+
+   /**
+    * @return backing packed rows (not a copy)
+    */
+   public byte[] getBits() {
+      return bits;
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      if (!(o instanceof PackedEdgeMap))
+         return false;
+      PackedEdgeMap other = (PackedEdgeMap) o;
+      return rows == other.rows && columns == other.columns
+             && Arrays.equals(bits, 0, rows * stride, other.bits, 0, rows * stride);
+   }
+
+   @Override
+   public int hashCode() {
+      int hash = 31 * rows + columns;
+      for (int i = 0; i < rows * stride; i++) {
+         hash = 31 * hash + bits[i];
+      }
+      return hash;
+   }
+}
@@ -1,7 +1,10 @@
 package edgedetector.util;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.awt.image.WritableRaster;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 public class Threshold {
    
@@ -15,105 +18,172 @@ public class Threshold {
    }
    
 
+   // rows rendered by one task when rendering in parallel
+   private static final int BAND_ROWS = 64;
+   // images with fewer pixels are rendered on the calling thread
+   private static final int PARALLEL_PIXELS = 1 << 18;
+
+   // RESCALED[min << 8 | v] = 255 - (int) (255.0 / (255.0 - min) * (255.0 - v))
+   private static final byte[] RESCALED = rescaleTable();
+
    /**
     * Returns BufferedImage where color at (i, j) is black if pixel intensity >
     * threshold; white otherwise.
     * @param pixels
     * @param threshold
-    * @return
+    * @return TYPE_BYTE_BINARY image
     */
    public static BufferedImage applyThreshold(int[][] pixels, int threshold) {
       int height = pixels.length;
       int width = pixels[0].length;
 
-      BufferedImage thresholdedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-      WritableRaster raster = thresholdedImage.getRaster();
-
-      int[] black = {0, 0, 0};
-      int[] white = {255, 255, 255};
-
-      // cache-efficient for both BufferedImage and int[][]
-      for (int row = 0; row < height; row++)
-         for (int col = 0; col < width; col++)
-            raster.setPixel(col, row, pixels[row][col] > threshold ? white : black);
+      BufferedImage thresholdedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+      byte[] data = ((DataBufferByte) thresholdedImage.getRaster().getDataBuffer()).getData();
+      int stride = PackedEdgeMap.strideOf(width);
+
+      // 1 = white in the binary color model
+      forEachBand(height, width, row -> {
+         int[] values = pixels[row];
+         int p = row * stride;
+         for (int col = 0; col < width; col += 8, p++) {
+            int b = 0;
+            for (int bit = 0; bit < 8; bit++) {
+               b <<= 1;
+               if (col + bit < width && values[col + bit] > threshold)
+                  b |= 1;
+            }
+            data[p] = (byte) b;
+         }
+      });
 
       return thresholdedImage;
    }
-   
-   public static BufferedImage applyThreshold(boolean[][] pixels) {
-      int height = pixels.length;
-      int width = pixels[0].length;
 
-      BufferedImage thresholdedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-      WritableRaster raster = thresholdedImage.getRaster();
-
-      int[] black = {0, 0, 0};
-      int[] white = {255, 255, 255};
-
-      // cache efficient for both BufferedImage and int[][]
-      for (int row = 0; row < height; row++)
-         for (int col = 0; col < width; col++)
-            raster.setPixel(col, row, pixels[row][col] ? white : black);
-
-      return thresholdedImage;
+   /**
+    * @return TYPE_BYTE_BINARY image, white where pixels is true
+    */
+   public static BufferedImage applyThreshold(boolean[][] pixels) {
+      return binaryImage(pixels, false);
    }
- 
+
+   /**
+    * @return TYPE_BYTE_BINARY image, black where pixels is true
+    */
    public static BufferedImage applyThresholdReversed(boolean[][] pixels) {
+      return binaryImage(pixels, true);
+   }
+
+   private static BufferedImage binaryImage(boolean[][] pixels, boolean reversed) {
       int height = pixels.length;
       int width = pixels[0].length;
 
-      BufferedImage thresholdedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-      WritableRaster raster = thresholdedImage.getRaster();
-
-      int[] black = {0, 0, 0};
-      int[] white = {255, 255, 255};
+      BufferedImage thresholdedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+      byte[] data = ((DataBufferByte) thresholdedImage.getRaster().getDataBuffer()).getData();
+      int stride = PackedEdgeMap.strideOf(width);
 
-      // cache efficient for both BufferedImage and int[][]
-      for (int row = 0; row < height; row++)
-         for (int col = 0; col < width; col++)
-            raster.setPixel(col, row, pixels[row][col] ? black : white);
+      forEachBand(height, width, row -> PackedEdgeMap.packRow(pixels[row], 0, width, reversed, data, row * stride));
 
       return thresholdedImage;
    }
-   
+
+   /**
+    * Returns BufferedImage where strong edges are green, weak edges blue and
+    * everything else white.
+    */
    public static BufferedImage applyThresholdWeakStrongCanny(boolean[][] weakEdges, boolean[][] strongEdges) {
       int height = weakEdges.length;
       int width = weakEdges[0].length;
 
       BufferedImage thresholdedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-      WritableRaster raster = thresholdedImage.getRaster();
-
-      int[] white = {255, 255, 255};
-      int[] blue = {0, 0, 255};
-      int[] green = {0, 255, 0};
-
-      // cache efficient for both BufferedImage and int[][]
-      for (int row = 0; row < height; row++)
-         for (int col = 0; col < width; col++) {
-            if (strongEdges[row][col])
-               raster.setPixel(col, row, green);
-            else if (weakEdges[row][col])
-               raster.setPixel(col, row, blue);
-            else
-               raster.setPixel(col, row, white);
+      byte[] data = ((DataBufferByte) thresholdedImage.getRaster().getDataBuffer()).getData();
+
+      // bytes are blue, green, red
+      forEachBand(height, width, row -> {
+         boolean[] weak = weakEdges[row];
+         boolean[] strong = strongEdges[row];
+         int p = 3 * row * width;
+         for (int col = 0; col < width; col++, p += 3) {
+            if (strong[col]) {
+               data[p] = 0;
+               data[p + 1] = (byte) 255;
+               data[p + 2] = 0;
+            } else if (weak[col]) {
+               data[p] = (byte) 255;
+               data[p + 1] = 0;
+               data[p + 2] = 0;
+            } else {
+               data[p] = (byte) 255;
+               data[p + 1] = (byte) 255;
+               data[p + 2] = (byte) 255;
+            }
          }
+      });
 
       return thresholdedImage;
    }
 
 
+   /**
+    * Returns BufferedImage that is white except at edges, where it has the color
+    * of originalImage rescaled so that its darkest channel becomes 0.
+    */
    public static BufferedImage applyThresholdOriginal(boolean[][] edges, BufferedImage originalImage) {
       int height = edges.length;
       int width = edges[0].length;
 
       BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-      WritableRaster raster_new = newImage.getRaster();
       WritableRaster raster_old = originalImage.getRaster();
-      
+      if (!isRgb8(raster_old))
+         return applyThresholdOriginalPixels(edges, raster_old, newImage);
+
+      byte[] data = ((DataBufferByte) newImage.getRaster().getDataBuffer()).getData();
+      byte[] table = RESCALED;
+
+      forEachBand(height, width, row -> {
+         int[] rgb = raster_old.getPixels(0, row, width, 1, (int[]) null);
+         boolean[] edgeRow = edges[row];
+         int p = 3 * row * width;
+         for (int col = 0, q = 0; col < width; col++, p += 3, q += 3) {
+            if (!edgeRow[col]) {                      // not edge
+               data[p] = data[p + 1] = data[p + 2] = (byte) 255;
+            } else {                                  // edge
+               int r = rgb[q], g = rgb[q + 1], b = rgb[q + 2];
+               int min = Math.min(255, Math.min(r, Math.min(g, b))) << 8;
+               data[p] = table[min | b];
+               data[p + 1] = table[min | g];
+               data[p + 2] = table[min | r];
+            }
+         }
+      });
+
+      return newImage;
+   }
+
+   /**
+    * @return whether raster has exactly three bands of at most 8 bits
+    */
+   private static boolean isRgb8(WritableRaster raster) {
+      if (raster.getNumBands() != 3)
+         return false;
+      for (int size : raster.getSampleModel().getSampleSize())
+         if (size > 8)
+            return false;
+      return true;
+   }
+
+   /**
+    * Per-pixel path of applyThresholdOriginal for other rasters.
+    */
+   private static BufferedImage applyThresholdOriginalPixels(boolean[][] edges, WritableRaster raster_old,
+                                                             BufferedImage newImage) {
+      int height = edges.length;
+      int width = edges[0].length;
+      WritableRaster raster_new = newImage.getRaster();
+
       int[] white = {255, 255, 255};
       int[] arr = new int[3];
       int min;
-      
+
       for (int row = 0; row < height; row++) {
          for (int col = 0; col < width; col++) {
             if (!edges[row][col]) {                   // not edge
@@ -132,9 +202,41 @@ public class Threshold {
                   arr[i] = 255 - (int) (scale * (255.0 - arr[i]));
                raster_new.setPixel(col, row, arr);
             }
-         } 
+         }
       }
-      
+
       return newImage;
    }
+
+   /**
+    * Rescaled channel value for every (darkest channel, channel) pair, computed
+    * with the same floating-point expression as the per-pixel path.
+    */
+   private static byte[] rescaleTable() {
+      byte[] table = new byte[1 << 16];
+      for (int min = 0; min < 256; min++) {
+         double scale = 255.0 / (255.0 - min);
+         for (int v = min; v < 256; v++)
+            table[min << 8 | v] = (byte) (255 - (int) (scale * (255.0 - v)));
+      }
+      return table;
+   }
+
+   /**
+    * Calls renderRow for every row, in parallel bands of rows for large images.
+    * Each row owns its bytes of the output buffer, so bands never share data.
+    */
+   private static void forEachBand(int height, int width, IntConsumer renderRow) {
+      if ((long) height * width < PARALLEL_PIXELS) {
+         for (int row = 0; row < height; row++)
+            renderRow.accept(row);
+         return;
+      }
+      int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+      IntStream.range(0, bands).parallel().forEach(band -> {
+         int end = Math.min(height, (band + 1) * BAND_ROWS);
+         for (int row = band * BAND_ROWS; row < end; row++)
+            renderRow.accept(row);
+      });
+   }
 }